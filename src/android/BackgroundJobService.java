@@ -0,0 +1,21 @@
+package de.einfachhans.BackgroundMode;
+
+import android.app.job.JobParameters;
+import android.app.job.JobService;
+
+/**
+ * Runs the deferrable tasks once the constraints of their batch are met.
+ */
+public class BackgroundJobService extends JobService {
+
+    @Override
+    public boolean onStartJob (JobParameters params) {
+        return TaskScheduler.onJobStarted(this, params);
+    }
+
+    @Override
+    public boolean onStopJob (JobParameters params) {
+        TaskScheduler.onJobStopped(params);
+        return true;
+    }
+}
@@ -2,6 +2,7 @@ package de.einfachhans.BackgroundMode;
 
 import android.Manifest;
 import android.app.Activity;
+import android.app.ForegroundServiceStartNotAllowedException;
 import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
@@ -9,17 +10,26 @@ import android.content.ServiceConnection;
 import android.content.pm.PackageManager;
 import android.os.Build;
 import android.os.IBinder;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Base64;
 
 import androidx.core.app.ActivityCompat;
 import androidx.core.content.ContextCompat;
 
 import org.apache.cordova.CallbackContext;
 import org.apache.cordova.CordovaPlugin;
+import org.apache.cordova.CordovaPluginPathHandler;
 import org.apache.cordova.PluginResult;
 import org.apache.cordova.PluginResult.Status;
 import org.json.JSONArray;
+import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
 import de.einfachhans.BackgroundMode.ForegroundService.ForegroundBinder;
 
 import static android.content.Context.BIND_AUTO_CREATE;
@@ -54,6 +64,13 @@ public class BackgroundMode extends CordovaPlugin {
     // Service that keeps the app awake
     private ForegroundService service;
 
+    // Plugin instance attached to the web view, used to dispatch events
+    private static BackgroundMode instance;
+
+    // Time spent in pluginInitialize and from the process start to it in ms
+    private static double initTime = -1;
+    private static long launchTime = -1;
+
     // Used to (un)bind the service to with the activity
     private final ServiceConnection connection = new ServiceConnection()
     {
@@ -67,6 +84,10 @@ public class BackgroundMode extends CordovaPlugin {
         @Override
         public void onServiceDisconnected (ComponentName name)
         {
+            // The binding stays registered and reconnects once the service
+            // gets recreated, until then there is no service to talk to
+            BackgroundMode.this.service = null;
+            LogRing.warn("BackgroundMode", "service disconnected");
             fireEvent(Event.FAILURE, "'service disconnected'");
         }
     };
@@ -96,6 +117,78 @@ public class BackgroundMode extends CordovaPlugin {
             case "requestPermissions":
                 requestNotificationPermission(callback);
                 break;
+            case "addTask":
+                addTask(args.optString(0), args.optJSONObject(1));
+                callback.success();
+                break;
+            case "finishTask":
+                finishTask(args.optString(0));
+                callback.success();
+                break;
+            case "addWakeup":
+                WakeupPlanner.add(cordova.getActivity().getApplicationContext(),
+                        args.optString(0), args.optLong(1), args.optLong(2));
+                callback.success();
+                break;
+            case "removeWakeup":
+                WakeupPlanner.remove(cordova.getActivity().getApplicationContext(),
+                        args.optString(0));
+                callback.success();
+                break;
+            case "wakeupStats":
+                callback.success(WakeupPlanner.getStats(cordova.getActivity().getApplicationContext()));
+                break;
+            case "streamJson":
+                streamJson(args.optString(0), args.optString(1),
+                        args.optJSONObject(2), callback);
+                break;
+            case "ackChunk":
+                JsonStreamer.ack(args.optString(0));
+                callback.success();
+                break;
+            case "cancelStream":
+                JsonStreamer.cancel(args.optString(0));
+                callback.success();
+                break;
+            case "download":
+                download(args.optString(0), args.optString(1), args.optString(2),
+                        args.optJSONObject(3), callback);
+                break;
+            case "cancelDownload":
+                Downloader.cancel(args.optString(0));
+                callback.success();
+                break;
+            case "traffic":
+                traffic(args.optJSONObject(0), callback);
+                break;
+            case "watchdog":
+                cordova.getThreadPool().execute(() -> watchdog(callback));
+                break;
+            case "qos":
+                callback.success(ThrottleGovernor.getState());
+                break;
+            case "energy":
+                callback.success(EnergyMonitor.getSummary());
+                break;
+            case "startup":
+                callback.success(getStartupStats());
+                break;
+            case "flushActions":
+                NotificationActionReceiver.flush();
+                callback.success();
+                break;
+            case "cache":
+                cordova.getThreadPool().execute(() -> cache(args, callback));
+                break;
+            case "records":
+                cordova.getThreadPool().execute(() -> records(args, callback));
+                break;
+            case "bulk":
+                cordova.getThreadPool().execute(() -> bulk(args, callback));
+                break;
+            case "logs":
+                cordova.getThreadPool().execute(() -> logs(args, callback));
+                break;
             default:
                 validAction = false;
         }
@@ -107,6 +200,60 @@ public class BackgroundMode extends CordovaPlugin {
         return validAction;
     }
 
+    /**
+     * Called after plugin construction and fields have been initialized.
+     */
+    @Override
+    protected void pluginInitialize()
+    {
+        long start      = SystemClock.elapsedRealtimeNanos();
+        Context context = cordova.getActivity().getApplicationContext();
+
+        instance = this;
+        cordova.getThreadPool().execute(() -> LogRing.init(context));
+        ServiceWatchdog.onLaunch(context);
+
+        initTime = (SystemClock.elapsedRealtimeNanos() - start) / 1e6;
+
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N) {
+            launchTime = SystemClock.elapsedRealtime() - Process.getStartElapsedRealtime();
+        }
+    }
+
+    /**
+     * What the plugin costs at startup, -1 if not measured yet.
+     */
+    private static JSONObject getStartupStats()
+    {
+        JSONObject stats = new JSONObject();
+
+        try {
+            stats.put("pluginInitialize", initTime);
+            stats.put("processToPlugin", launchTime);
+            stats.put("serviceCreate", ForegroundService.getCreateTime());
+        } catch (JSONException e) {
+            // Keys are never null
+        }
+
+        return stats;
+    }
+
+    /**
+     * Called when the web view navigates or reloads. The JS side starts
+     * over with the default settings and skips configure if unchanged,
+     * its immediate tasks are dropped so they can't keep the service.
+     */
+    @Override
+    public void onReset()
+    {
+        defaultSettings = new JSONObject();
+
+        // The callbacks and task ids of the old page are gone
+        JsonStreamer.cancelAll();
+        Downloader.cancelAll();
+        TaskScheduler.reset(cordova.getActivity().getApplicationContext());
+    }
+
     /**
      * Request notification permission for Android 13+
      */
@@ -188,6 +335,9 @@ public class BackgroundMode extends CordovaPlugin {
     {
         inBackground = false;
         stopService();
+        TaskScheduler.flushUndelivered(cordova.getActivity().getApplicationContext());
+        WakeupPlanner.flushUndelivered(cordova.getActivity().getApplicationContext());
+        NotificationActionReceiver.flush();
     }
 
     /**
@@ -196,7 +346,14 @@ public class BackgroundMode extends CordovaPlugin {
     @Override
     public void onDestroy()
     {
+        instance = null;
+        JsonStreamer.cancelAll();
+        Downloader.cancelAll();
+        BulkChannel.shutdown();
         stopService();
+
+        // The service never gets its onDestroy, end the session before
+        ServiceWatchdog.stopNow();
         android.os.Process.killProcess(android.os.Process.myPid());
     }
 
@@ -227,7 +384,17 @@ public class BackgroundMode extends CordovaPlugin {
             startService();
         }
         
-        if (callback != null) {
+        if (callback == null)
+            return;
+
+        // Hand over a cancel which did not reach JS yet, JS still
+        // considers the mode enabled until it gets it
+        JSONObject cancel = NotificationActionReceiver.take(
+                NotificationActionReceiver.CANCEL);
+
+        if (cancel != null) {
+            callback.success(cancel);
+        } else {
             callback.success();
         }
     }
@@ -273,11 +440,366 @@ public class BackgroundMode extends CordovaPlugin {
      */
     private void updateNotification(JSONObject settings)
     {
-        if (isBind) {
+        if (isBind && service != null) {
             service.updateNotification(settings);
         }
     }
 
+    /**
+     * Register a unit of background work. Immediate work starts the
+     * foreground service right away if the app is already in background.
+     */
+    private void addTask(String id, JSONObject spec)
+    {
+        Activity context = cordova.getActivity();
+
+        if (TaskScheduler.add(context, id, spec) && inBackground) {
+            startService();
+        }
+    }
+
+    /**
+     * Mark a unit of background work as done. Stops the foreground service
+     * in tiered mode once there is no immediate work left.
+     */
+    private void finishTask(String id)
+    {
+        Activity context = cordova.getActivity();
+
+        if (TaskScheduler.finish(context, id) && isTiered() && !hasImmediateWork()) {
+            stopService();
+        }
+    }
+
+    /**
+     * If there is immediate work of JS or other plugins.
+     */
+    private static boolean hasImmediateWork()
+    {
+        return TaskScheduler.hasImmediateWork() || ForegroundService.hasImmediateTasks();
+    }
+
+    /**
+     * Called on the main thread once another plugin (un)registered a task.
+     * In tiered mode the service follows the immediate work.
+     */
+    static void onTasksChanged()
+    {
+        BackgroundMode plugin = instance;
+
+        if (plugin == null || !plugin.inBackground)
+            return;
+
+        if (hasImmediateWork()) {
+            plugin.startService();
+        } else if (plugin.isTiered()) {
+            plugin.stopService();
+        }
+    }
+
+    /**
+     * Stream the items of a large JSON payload to JS. The stream counts as
+     * immediate work, so the foreground service keeps running until it ends.
+     */
+    private void streamJson(String id, String source, JSONObject spec,
+                            CallbackContext callback)
+    {
+        Activity context = cordova.getActivity();
+        String task      = "stream:" + id;
+
+        addTask(task, null);
+
+        JsonStreamer.start(context.getApplicationContext(), id, source, spec, callback,
+                () -> context.runOnUiThread(() -> finishTask(task)));
+    }
+
+    /**
+     * Download a file into the disk cache. The download counts as
+     * immediate work, so the service keeps running until it is done.
+     * While the policy pauses it, the work is released.
+     */
+    private void download(String id, String url, String key, JSONObject spec,
+                          CallbackContext callback)
+    {
+        Activity context = cordova.getActivity();
+        String task      = "download:" + id;
+
+        addTask(task, null);
+
+        Downloader.start(context.getApplicationContext(), id, url, key, spec, callback,
+                paused -> context.runOnUiThread(() -> {
+                    if (paused) {
+                        finishTask(task);
+                    } else {
+                        addTask(task, null);
+                    }
+                }),
+                () -> context.runOnUiThread(() -> finishTask(task)));
+    }
+
+    /**
+     * Update the transfer policy if given and return the data usage.
+     */
+    private void traffic(JSONObject policy, CallbackContext callback)
+    {
+        TrafficMonitor.init(cordova.getActivity().getApplicationContext());
+
+        if (policy != null) {
+            TrafficMonitor.setPolicy(policy);
+            Downloader.onPolicyChanged();
+        }
+
+        callback.success(TrafficMonitor.getSummary());
+    }
+
+    /**
+     * Return the deaths of the service detected by the watchdog.
+     */
+    private void watchdog(CallbackContext callback)
+    {
+        try {
+            callback.success(ServiceWatchdog.getStats(cordova.getActivity().getApplicationContext()));
+        } catch (Exception e) {
+            callback.error("Watchdog read failed: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Run a disk cache operation. The first arg is the operation,
+     * the second one the key of the entry.
+     */
+    private void cache(JSONArray args, CallbackContext callback)
+    {
+        String op  = args.optString(0);
+        String key = args.optString(1);
+        boolean base64 = "base64".equals(args.optString(3));
+
+        try {
+            Context context = cordova.getActivity().getApplicationContext();
+
+            if (op.equals("bench")) {
+                JSONObject opts = args.optJSONObject(2);
+                callback.success(DiskCache.benchmark(context,
+                        opts != null ? opts.optInt("entries", 100000) : 100000,
+                        opts != null ? opts.optInt("entrySize", 64) : 64));
+                return;
+            }
+
+            DiskCache cache = DiskCache.get(context);
+
+            switch (op)
+            {
+                case "put":
+                    String data = args.optString(2);
+                    callback.success(cache.put(key, base64
+                            ? Base64.decode(data, Base64.NO_WRAP)
+                            : data.getBytes(StandardCharsets.UTF_8)));
+                    break;
+                case "get":
+                    byte[] bytes = cache.read(key);
+                    if (bytes == null) {
+                        callback.sendPluginResult(new PluginResult(Status.OK, (String) null));
+                    } else {
+                        callback.success(base64
+                                ? Base64.encodeToString(bytes, Base64.NO_WRAP)
+                                : new String(bytes, StandardCharsets.UTF_8));
+                    }
+                    break;
+                case "stat":
+                    JSONObject stat = cache.stat(key);
+                    if (stat == null) {
+                        callback.sendPluginResult(new PluginResult(Status.OK, (String) null));
+                    } else {
+                        callback.success(stat);
+                    }
+                    break;
+                case "remove":
+                    cache.remove(key);
+                    callback.success();
+                    break;
+                case "limits":
+                    JSONObject limits = args.optJSONObject(2);
+                    if (limits != null) {
+                        cache.setLimits(limits.optLong("maxSize"), limits.optLong("maxAge"));
+                    }
+                    callback.success(cache.getStats());
+                    break;
+                default:
+                    callback.error("Invalid cache operation: " + op);
+            }
+        } catch (Exception e) {
+            callback.error(String.format("Cache %s failed: %s", op, e.getMessage()));
+        }
+    }
+
+    /**
+     * Run a record sink operation. The first arg is the operation,
+     * the second one the name of the stream.
+     */
+    private void records(JSONArray args, CallbackContext callback)
+    {
+        String op     = args.optString(0);
+        String stream = args.optString(1);
+
+        try {
+            RecordSink sink = RecordSink.get(cordova.getActivity());
+
+            switch (op)
+            {
+                case "append":
+                    JSONArray records = args.optJSONArray(2);
+                    if (records != null) {
+                        sink.append(stream, records);
+                    }
+                    // Durable appends are acked once the records are stored
+                    if (records != null && args.optBoolean(3)) {
+                        sink.sync();
+                    }
+                    callback.success(records != null ? records.length() : 0);
+                    break;
+                case "read":
+                    callback.success(sink.read(stream, args.optLong(2), args.optInt(3)));
+                    break;
+                case "delete":
+                    callback.success(sink.delete(stream, args.optLong(2)));
+                    break;
+                case "flush":
+                    sink.sync();
+                    callback.success();
+                    break;
+                case "bench":
+                    callback.success(RecordSink.benchmark(cordova.getActivity(), args.optInt(2, 2)));
+                    break;
+                default:
+                    callback.error("Invalid records operation: " + op);
+            }
+        } catch (Exception e) {
+            callback.error(String.format("Records %s failed: %s", op, e.getMessage()));
+        }
+    }
+
+    /**
+     * Run a bulk channel operation. The first arg is the operation,
+     * the second one the source of the handle or the handle to release.
+     */
+    private void bulk(JSONArray args, CallbackContext callback)
+    {
+        String op = args.optString(0);
+
+        try {
+            switch (op)
+            {
+                case "open":
+                    JSONObject source = args.optJSONObject(1);
+                    File file = source != null ? getBulkFile(source) : null;
+                    if (file == null) {
+                        callback.error("Bulk source not found");
+                    } else {
+                        callback.success(BulkChannel.open(file, source.optBoolean("once", false),
+                                source.optLong("ttl", 0), getOrigin()));
+                    }
+                    break;
+                case "sample":
+                    callback.success(BulkChannel.openSample(cordova.getActivity().getCacheDir(),
+                            args.optLong(1), getOrigin()));
+                    break;
+                case "read":
+                    // The bridge path the channel gets compared with
+                    callback.success(BulkChannel.read(args.optString(1)));
+                    break;
+                case "release":
+                    BulkChannel.release(args.optString(1));
+                    callback.success();
+                    break;
+                default:
+                    callback.error("Invalid bulk operation: " + op);
+            }
+        } catch (Exception e) {
+            callback.error(String.format("Bulk %s failed: %s", op, e.getMessage()));
+        }
+    }
+
+    /**
+     * Serve the bulk handles same-origin through the asset loader of the
+     * web view.
+     */
+    @Override
+    public CordovaPluginPathHandler getPathHandler()
+    {
+        return new CordovaPluginPathHandler(BulkChannel::serve);
+    }
+
+    /**
+     * Origin of the web view as configured by the scheme and hostname
+     * preferences of cordova-android.
+     */
+    private String getOrigin()
+    {
+        return preferences.getString("scheme", "https") + "://"
+                + preferences.getString("hostname", "localhost");
+    }
+
+    /**
+     * The file of a bulk source, either an entry of the disk cache or a
+     * path inside the private storage of the app.
+     */
+    private File getBulkFile(JSONObject source) throws IOException
+    {
+        Context context = cordova.getActivity().getApplicationContext();
+
+        if (source.has("cache"))
+            return DiskCache.get(context).getFile(source.optString("cache"));
+
+        if (source.optBoolean("logs", false))
+            return LogRing.getFile();
+
+        String path = source.optString("path").replaceFirst("^file://", "");
+        File file   = new File(path).getCanonicalFile();
+
+        boolean allowed = isInside(file, context.getFilesDir())
+                || isInside(file, context.getCacheDir())
+                || isInside(file, context.getExternalFilesDir(null))
+                || isInside(file, context.getExternalCacheDir());
+
+        if (path.isEmpty() || !allowed)
+            throw new IOException("Path outside of app storage: " + path);
+
+        return file.isFile() ? file : null;
+    }
+
+    /**
+     * If the canonical file lies below the given directory.
+     */
+    private static boolean isInside(File file, File dir) throws IOException
+    {
+        if (dir == null)
+            return false;
+
+        return file.getPath().startsWith(dir.getCanonicalPath() + File.separator);
+    }
+
+    /**
+     * Read the recent entries of the log ring. The args are the sequence
+     * to start after and the max number of entries.
+     */
+    private void logs(JSONArray args, CallbackContext callback)
+    {
+        try {
+            LogRing.init(cordova.getActivity().getApplicationContext());
+            callback.success(LogRing.read(args.optLong(0), args.optInt(1)));
+        } catch (Exception e) {
+            callback.error("Logs read failed: " + e.getMessage());
+        }
+    }
+
+    /**
+     * If the foreground service is reserved for immediate work.
+     */
+    private boolean isTiered()
+    {
+        return defaultSettings.optBoolean("tiered", false);
+    }
+
     /**
      * Bind the activity to a background service and put them into foreground state.
      */
@@ -288,24 +810,49 @@ public class BackgroundMode extends CordovaPlugin {
         if (isDisabled || isBind)
             return;
 
+        if (isTiered() && !hasImmediateWork())
+            return;
+
         Intent intent = new Intent(context, ForegroundService.class);
 
         try {
-            context.bindService(intent, connection, BIND_AUTO_CREATE);
-            
+            if (!context.bindService(intent, connection, BIND_AUTO_CREATE))
+                throw new IllegalStateException("service not bound");
+
             // For Android 14+, use startForeground with type
             if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
                 context.startForegroundService(intent);
             } else {
                 context.startService(intent);
             }
-            
-            fireEvent(Event.ACTIVATE, null);
         } catch (Exception e) {
-            fireEvent(Event.FAILURE, String.format("'%s'", e.getMessage()));
+            // Do not leave a binding or started service behind, the
+            // connection must be released even if bindService failed
+            releaseService(context, intent);
+
+            LogRing.error("BackgroundMode", e);
+
+            // Android 12+ may refuse the start from background, an
+            // expedited job keeps the immediate work running instead
+            if (isStartNotAllowed(e) && TaskScheduler.hasImmediateWork()
+                    && TaskScheduler.runExpedited(context))
+                return;
+
+            fireEvent(Event.FAILURE, JSONObject.quote(String.valueOf(e.getMessage())));
+            return;
         }
 
         isBind = true;
+        fireEvent(Event.ACTIVATE, null);
+    }
+
+    /**
+     * If the system refused to start the foreground service from background.
+     */
+    private static boolean isStartNotAllowed(Exception e)
+    {
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.S
+                && e instanceof ForegroundServiceStartNotAllowedException;
     }
 
     /**
@@ -318,16 +865,31 @@ public class BackgroundMode extends CordovaPlugin {
 
         if (!isBind) return;
 
+        isBind = false;
         fireEvent(Event.DEACTIVATE, null);
-        
+        releaseService(context, intent);
+    }
+
+    /**
+     * Unbind and stop the service. Both steps are tried on their own,
+     * so a failed unbind does not keep the service running.
+     */
+    private void releaseService(Activity context, Intent intent)
+    {
+        service = null;
+
         try {
             context.unbindService(connection);
-            context.stopService(intent);
         } catch (Exception e) {
-            // Service might already be stopped
+            // Not bound anymore
+            LogRing.warn("BackgroundMode", "unbind failed");
         }
 
-        isBind = false;
+        try {
+            context.stopService(intent);
+        } catch (Exception e) {
+            LogRing.error("BackgroundMode", e);
+        }
     }
 
     /**
@@ -351,4 +913,41 @@ public class BackgroundMode extends CordovaPlugin {
 
         cordova.getActivity().runOnUiThread(() -> webView.loadUrl("javascript:" + js));
     }
-}
\ No newline at end of file
+
+    /**
+     * Stop the background session from the cancel notification action.
+     * Disables the mode if the plugin is attached, otherwise stops the
+     * service directly.
+     */
+    static void cancel (Context context)
+    {
+        BackgroundMode plugin = instance;
+
+        if (plugin == null) {
+            context.stopService(new Intent(context, ForegroundService.class));
+            return;
+        }
+
+        plugin.cordova.getActivity().runOnUiThread(plugin::disableMode);
+    }
+
+    /**
+     * Fire a custom event inside the web view of the attached plugin.
+     * Returns false if there is no web view to receive the event.
+     */
+    static boolean emit (String event, String params)
+    {
+        BackgroundMode plugin = instance;
+
+        if (plugin == null)
+            return false;
+
+        String js = String.format("%s.fireEvent('%s',%s);",
+                JS_NAMESPACE, event, params);
+
+        plugin.cordova.getActivity().runOnUiThread(
+                () -> plugin.webView.loadUrl("javascript:" + js));
+
+        return true;
+    }
+}
@@ -6,27 +6,37 @@ import android.app.Activity;
 import android.app.ActivityManager;
 import android.app.ActivityManager.AppTask;
 import android.app.AlertDialog;
+import android.app.KeyguardManager;
+import android.content.BroadcastReceiver;
 import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
+import android.content.IntentFilter;
 import android.content.pm.PackageManager;
 import android.net.Uri;
 import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
 import android.os.PowerManager;
+import android.os.SystemClock;
 import android.view.View;
 import android.view.Window;
 
+import androidx.lifecycle.Lifecycle;
+
 import org.apache.cordova.CallbackContext;
 import org.apache.cordova.CordovaPlugin;
 import org.apache.cordova.PluginResult;
 import org.apache.cordova.PluginResult.Status;
 import org.json.JSONArray;
+import org.json.JSONException;
 import org.json.JSONObject;
 
 import java.util.Arrays;
 import java.util.List;
 
 import static android.content.Context.ACTIVITY_SERVICE;
+import static android.content.Context.KEYGUARD_SERVICE;
 import static android.content.Context.POWER_SERVICE;
 import static android.content.pm.PackageManager.MATCH_DEFAULT_ONLY;
 import static android.os.Build.VERSION.SDK_INT;
@@ -39,8 +49,53 @@ import static android.view.WindowManager.LayoutParams.FLAG_TURN_SCREEN_ON;
 
 public class BackgroundModeExt extends CordovaPlugin {
 
+    // Conditions a pending wakeup or unlock waits for
+    private static final int AWAIT_NONE     = 0;
+    private static final int AWAIT_SCREEN   = 1;
+    private static final int AWAIT_RESUME   = 2;
+    private static final int AWAIT_KEYGUARD = 3;
+
+    // Timeout of the screen wake lock and of waiting for the activity
+    private static final long WAKEUP_TIMEOUT = 3000;
+
+    // Timeout of waiting for the user to dismiss the keyguard
+    private static final long UNLOCK_TIMEOUT = 60000;
+
     private PowerManager.WakeLock wakeLock;
 
+    // Launch intent of the app, resolved once
+    private Intent launchIntent;
+
+    // Pending wakeup or unlock waiting for the device to become interactive
+    private CallbackContext pendingCallback;
+    private String pendingAction;
+    private int pendingAwait = AWAIT_NONE;
+    private long pendingSince;
+
+    // Keyguard to dismiss once the launched activity got resumed
+    private boolean pendingDismiss;
+
+    // If the activity is in foreground, tracked by this plugin itself
+    private boolean resumed;
+
+    // Receives the screen on broadcast while a wakeup is pending
+    private BroadcastReceiver screenReceiver;
+
+    private final Handler handler = new Handler(Looper.getMainLooper());
+
+    private final Runnable timeoutTask = () -> completeAny("timeout");
+
+    @Override
+    protected void pluginInitialize() {
+        Context context = cordova.getActivity().getApplicationContext();
+
+        // The plugin gets created lazily, the activity might be resumed already
+        resumed = cordova.getActivity().getLifecycle().getCurrentState()
+                .isAtLeast(Lifecycle.State.RESUMED);
+
+        cordova.getThreadPool().execute(() -> LogRing.init(context));
+    }
+
     @Override
     public boolean execute(String action, JSONArray args, CallbackContext callback) {
         boolean validAction = true;
@@ -64,8 +119,7 @@ public class BackgroundModeExt extends CordovaPlugin {
                     callback.success();
                     break;
                 case "foreground":
-                    moveToForeground();
-                    callback.success();
+                    moveToForeground(callback);
                     break;
                 case "tasklistExclude":
                     setExcludeFromRecents(true);
@@ -79,13 +133,10 @@ public class BackgroundModeExt extends CordovaPlugin {
                     isDimmed(callback);
                     break;
                 case "wakeup":
-                    wakeup();
-                    callback.success();
+                    wakeup(callback);
                     break;
                 case "unlock":
-                    wakeup();
-                    unlock();
-                    callback.success();
+                    unlock(callback);
                     break;
                 default:
                     validAction = false;
@@ -109,21 +160,72 @@ public class BackgroundModeExt extends CordovaPlugin {
         getApp().startActivity(intent);
     }
 
-    private void moveToForeground() {
+    /**
+     * Bring the existing task to front. Prefers AppTask.moveToFront, which
+     * never recreates the activity, and falls back to reordering through
+     * the cached launch intent. The callback receives the time until the
+     * activity was resumed.
+     */
+    private void moveToForeground(CallbackContext callback) {
         Activity app = getApp();
-        if (app == null) return;
+        long since   = SystemClock.elapsedRealtime();
 
-        Intent intent = getLaunchIntent();
-        if (intent == null) return;
+        if (app == null) {
+            callback.error("No activity");
+            return;
+        }
 
-        intent.addFlags(
-            Intent.FLAG_ACTIVITY_REORDER_TO_FRONT |
-            Intent.FLAG_ACTIVITY_SINGLE_TOP |
-            Intent.FLAG_ACTIVITY_CLEAR_TOP
-        );
+        if (isResumed()) {
+            report(callback, "foreground", "interactive", since);
+            return;
+        }
+
+        await(callback, "foreground", AWAIT_RESUME, since, WAKEUP_TIMEOUT);
+
+        app.runOnUiThread(() -> {
+            clearScreenAndKeyguardFlags(app);
+
+            if (moveTaskToFront(app))
+                return;
+
+            Intent intent = getLaunchIntent();
+
+            if (intent == null) {
+                complete(AWAIT_RESUME, "failed");
+                return;
+            }
+
+            // No CLEAR_TOP, it would recreate the activity and its web view
+            intent.addFlags(
+                Intent.FLAG_ACTIVITY_NEW_TASK |
+                Intent.FLAG_ACTIVITY_REORDER_TO_FRONT |
+                Intent.FLAG_ACTIVITY_SINGLE_TOP
+            );
+
+            app.startActivity(intent);
+        });
+    }
+
+    /**
+     * Move the task of the activity to front, returns false on failure.
+     */
+    @SuppressWarnings("deprecation")
+    private boolean moveTaskToFront(Activity app) {
+        ActivityManager am = (ActivityManager) getService(ACTIVITY_SERVICE);
+        if (am == null) return false;
 
-        clearScreenAndKeyguardFlags();
-        app.startActivity(intent);
+        try {
+            for (AppTask task : am.getAppTasks()) {
+                if (task.getTaskInfo().id == app.getTaskId()) {
+                    task.moveToFront();
+                    return true;
+                }
+            }
+        } catch (Exception e) {
+            // Task is gone, fall back to the launch intent
+        }
+
+        return false;
     }
 
     private void disableWebViewOptimizations() {
@@ -147,7 +249,8 @@ public class BackgroundModeExt extends CordovaPlugin {
                                 }
                             }
                         } catch (Exception e) {
-                            // Silently fail - webview might not be ready
+                            // Webview might not be ready
+                            LogRing.error("BackgroundModeExt", e);
                         }
                     });
                 } catch (InterruptedException e) {
@@ -179,7 +282,7 @@ public class BackgroundModeExt extends CordovaPlugin {
             activity.startActivity(intent);
         } catch (Exception e) {
             // Handle case where intent can't be resolved
-            android.util.Log.e("BackgroundMode", "Cannot open battery optimization settings", e);
+            LogRing.error("BackgroundModeExt", e);
         }
     }
 
@@ -197,6 +300,7 @@ public class BackgroundModeExt extends CordovaPlugin {
 
                     if (arg instanceof Boolean && !((Boolean) arg)) {
                         activity.startActivity(intent);
+                        ServiceWatchdog.onAppStartOpened(activity);
                         break;
                     }
 
@@ -216,8 +320,9 @@ public class BackgroundModeExt extends CordovaPlugin {
         dialog.setPositiveButton(android.R.string.ok, (o, d) -> {
             try {
                 activity.startActivity(intent);
+                ServiceWatchdog.onAppStartOpened(activity);
             } catch (Exception e) {
-                // Handle error
+                LogRing.error("BackgroundModeExt", e);
             }
         });
         
@@ -250,7 +355,7 @@ public class BackgroundModeExt extends CordovaPlugin {
                 tasks.get(0).setExcludeFromRecents(value);
             }
         } catch (Exception e) {
-            // Silently fail
+            LogRing.error("BackgroundModeExt", e);
         }
     }
 
@@ -271,20 +376,266 @@ public class BackgroundModeExt extends CordovaPlugin {
         }
     }
 
-    private void wakeup() {
+    /**
+     * Turn the screen on. The callback receives the time until the screen
+     * became interactive.
+     */
+    private void wakeup(CallbackContext callback) {
+        long since = SystemClock.elapsedRealtime();
+
+        if (!isDimmed()) {
+            report(callback, "wakeup", "interactive", since);
+            return;
+        }
+
+        await(callback, "wakeup", AWAIT_SCREEN, since, WAKEUP_TIMEOUT);
+
         try {
             acquireWakeLock();
         } catch (Exception e) {
             releaseWakeLock();
+            complete(AWAIT_SCREEN, "failed");
+        }
+    }
+
+    /**
+     * Turn the screen on, show the app above the lock screen and ask the
+     * keyguard to get dismissed. The callback receives the time until the
+     * app became interactive.
+     */
+    private void unlock(CallbackContext callback) {
+        Activity app = getApp();
+        long since   = SystemClock.elapsedRealtime();
+
+        if (app == null) {
+            callback.error("No activity");
+            return;
+        }
+
+        if (SDK_INT < Build.VERSION_CODES.O_MR1) {
+            unlockLegacy(app, callback, since);
+            return;
+        }
+
+        KeyguardManager km = (KeyguardManager) getService(KEYGUARD_SERVICE);
+        boolean locked     = km != null && km.isKeyguardLocked();
+
+        if (!locked && isResumed() && !isDimmed()) {
+            report(callback, "unlock", "interactive", since);
+            return;
+        }
+
+        int condition = locked ? AWAIT_KEYGUARD : isResumed() ? AWAIT_SCREEN : AWAIT_RESUME;
+
+        await(callback, "unlock", condition, since, locked ? UNLOCK_TIMEOUT : WAKEUP_TIMEOUT);
+
+        if (isDimmed()) {
+            try {
+                acquireWakeLock();
+            } catch (Exception e) {
+                releaseWakeLock();
+            }
+        }
+
+        app.runOnUiThread(() -> {
+            app.setShowWhenLocked(true);
+            app.setTurnScreenOn(true);
+
+            if (isResumed()) {
+                if (locked) {
+                    dismissKeyguard(app);
+                }
+                return;
+            }
+
+            // The dismiss request needs a resumed activity, see onResume
+            setPendingDismiss(locked);
+            startLaunchIntent(app);
+        });
+    }
+
+    /**
+     * Ask the system to dismiss the keyguard, the activity has to be
+     * in the foreground.
+     */
+    @TargetApi(Build.VERSION_CODES.O_MR1)
+    private void dismissKeyguard(Activity app) {
+        KeyguardManager km = (KeyguardManager) getService(KEYGUARD_SERVICE);
+
+        if (km == null) {
+            complete(AWAIT_KEYGUARD, "error");
+            return;
         }
+
+        km.requestDismissKeyguard(app, new KeyguardManager.KeyguardDismissCallback() {
+            @Override
+            public void onDismissSucceeded() {
+                complete(AWAIT_KEYGUARD, "dismissed");
+            }
+
+            @Override
+            public void onDismissCancelled() {
+                complete(AWAIT_KEYGUARD, "cancelled");
+            }
+
+            @Override
+            public void onDismissError() {
+                complete(AWAIT_KEYGUARD, "error");
+            }
+        });
     }
 
-    private void unlock() {
+    /**
+     * Unlock through the screen wake lock and window flags on devices
+     * without setShowWhenLocked and setTurnScreenOn.
+     */
+    private void unlockLegacy(Activity app, CallbackContext callback, long since) {
+        try {
+            acquireWakeLock();
+        } catch (Exception e) {
+            releaseWakeLock();
+        }
+
         addSreenAndKeyguardFlags();
-        Intent intent = getLaunchIntent();
-        if (intent != null) {
-            getApp().startActivity(intent);
+
+        if (isResumed()) {
+            report(callback, "unlock", "interactive", since);
+            return;
         }
+
+        await(callback, "unlock", AWAIT_RESUME, since, WAKEUP_TIMEOUT);
+        startLaunchIntent(app);
+    }
+
+    @Override
+    public void onPause(boolean multitasking) {
+        resumed = false;
+    }
+
+    /**
+     * A pending unlock completes once the activity is resumed. An unlock
+     * of a locked device requests the keyguard dismiss now.
+     */
+    @Override
+    public void onResume(boolean multitasking) {
+        resumed = true;
+        complete(AWAIT_RESUME, "interactive");
+
+        Activity app = getApp();
+
+        if (takePendingDismiss() && app != null && SDK_INT >= Build.VERSION_CODES.O_MR1) {
+            dismissKeyguard(app);
+        }
+    }
+
+    @Override
+    public void onDestroy() {
+        completeAny("destroyed");
+        releaseWakeLock();
+    }
+
+    private synchronized void setPendingDismiss(boolean dismiss) {
+        pendingDismiss = dismiss && pendingAwait == AWAIT_KEYGUARD;
+    }
+
+    /**
+     * If the keyguard is still to dismiss for the pending unlock.
+     */
+    private synchronized boolean takePendingDismiss() {
+        boolean dismiss = pendingDismiss && pendingAwait == AWAIT_KEYGUARD;
+
+        pendingDismiss = false;
+
+        return dismiss;
+    }
+
+    /**
+     * Remember the callback until the given condition is met or the
+     * timeout is reached. A still pending callback gets superseded.
+     */
+    private synchronized void await(CallbackContext callback, String action,
+                                    int condition, long since, long timeout) {
+        complete(pendingAwait, "superseded");
+
+        pendingCallback = callback;
+        pendingAction   = action;
+        pendingAwait    = condition;
+        pendingSince    = since;
+
+        if (condition == AWAIT_SCREEN) {
+            registerScreenReceiver();
+        }
+
+        handler.postDelayed(timeoutTask, timeout);
+    }
+
+    /**
+     * Report the pending callback if it waits for the given condition.
+     */
+    private synchronized void complete(int condition, String status) {
+        if (pendingCallback == null || pendingAwait != condition)
+            return;
+
+        CallbackContext callback = pendingCallback;
+
+        pendingCallback = null;
+        pendingAwait    = AWAIT_NONE;
+        pendingDismiss  = false;
+
+        handler.removeCallbacks(timeoutTask);
+        unregisterScreenReceiver();
+
+        report(callback, pendingAction, status, pendingSince);
+    }
+
+    /**
+     * Report the pending callback whatever condition it waits for.
+     */
+    private synchronized void completeAny(String status) {
+        complete(pendingAwait, status);
+    }
+
+    private void report(CallbackContext callback, String action, String status, long since) {
+        JSONObject result = new JSONObject();
+
+        try {
+            result.put("action", action);
+            result.put("status", status);
+            result.put("duration", SystemClock.elapsedRealtime() - since);
+        } catch (JSONException e) {
+            // Keys are never null
+        }
+
+        callback.success(result);
+    }
+
+    private void registerScreenReceiver() {
+        Activity app = getApp();
+        if (app == null || screenReceiver != null) return;
+
+        screenReceiver = new BroadcastReceiver() {
+            @Override
+            public void onReceive(Context context, Intent intent) {
+                releaseWakeLock();
+                complete(AWAIT_SCREEN, "interactive");
+            }
+        };
+
+        app.getApplicationContext().registerReceiver(screenReceiver,
+                new IntentFilter(Intent.ACTION_SCREEN_ON));
+    }
+
+    private void unregisterScreenReceiver() {
+        Activity app = getApp();
+        if (app == null || screenReceiver == null) return;
+
+        try {
+            app.getApplicationContext().unregisterReceiver(screenReceiver);
+        } catch (Exception e) {
+            // Not registered
+        }
+
+        screenReceiver = null;
     }
 
     @SuppressWarnings("deprecation")
@@ -303,8 +654,8 @@ public class BackgroundModeExt extends CordovaPlugin {
         wakeLock = pm.newWakeLock(level, "backgroundmode:wakelock");
         wakeLock.setReferenceCounted(false);
         
-        // Acquire with timeout (3 seconds) for safety
-        wakeLock.acquire(3000);
+        // Released once the screen is on, the timeout is just for safety
+        wakeLock.acquire(WAKEUP_TIMEOUT);
     }
 
     private void releaseWakeLock() {
@@ -334,30 +685,26 @@ public class BackgroundModeExt extends CordovaPlugin {
                     );
                 }
             } catch (Exception e) {
-                // Silently fail
+                LogRing.error("BackgroundModeExt", e);
             }
         });
     }
 
-    private void clearScreenAndKeyguardFlags() {
-        Activity app = getApp();
-        if (app == null) return;
-
-        app.runOnUiThread(() -> {
-            try {
-                Window window = app.getWindow();
-                if (window != null) {
-                    window.clearFlags(
-                        FLAG_ALLOW_LOCK_WHILE_SCREEN_ON |
-                        FLAG_SHOW_WHEN_LOCKED |
-                        FLAG_TURN_SCREEN_ON |
-                        FLAG_DISMISS_KEYGUARD
-                    );
-                }
-            } catch (Exception e) {
-                // Silently fail
+    private static void clearScreenAndKeyguardFlags(Activity app) {
+        try {
+            clearLockScreenState(app);
+            Window window = app.getWindow();
+            if (window != null) {
+                window.clearFlags(
+                    FLAG_ALLOW_LOCK_WHILE_SCREEN_ON |
+                    FLAG_SHOW_WHEN_LOCKED |
+                    FLAG_TURN_SCREEN_ON |
+                    FLAG_DISMISS_KEYGUARD
+                );
             }
-        });
+        } catch (Exception e) {
+            LogRing.error("BackgroundModeExt", e);
+        }
     }
 
     static void clearKeyguardFlags(Activity app) {
@@ -365,28 +712,61 @@ public class BackgroundModeExt extends CordovaPlugin {
 
         app.runOnUiThread(() -> {
             try {
+                clearLockScreenState(app);
                 Window window = app.getWindow();
                 if (window != null) {
                     window.clearFlags(FLAG_DISMISS_KEYGUARD);
                 }
             } catch (Exception e) {
-                // Silently fail
+                LogRing.error("BackgroundModeExt", e);
             }
         });
     }
 
+    /**
+     * Stop showing the app above the lock screen after an unlock.
+     */
+    private static void clearLockScreenState(Activity app) {
+        if (SDK_INT >= Build.VERSION_CODES.O_MR1) {
+            app.setShowWhenLocked(false);
+            app.setTurnScreenOn(false);
+        }
+    }
+
+    /**
+     * If the activity is in foreground.
+     */
+    private boolean isResumed() {
+        return resumed;
+    }
+
     Activity getApp() {
         return cordova.getActivity();
     }
 
+    /**
+     * A copy of the launch intent of the app, resolved only once.
+     */
     private Intent getLaunchIntent() {
-        Activity app = getApp();
-        if (app == null) return null;
+        if (launchIntent == null) {
+            Activity app = getApp();
+            if (app == null) return null;
 
-        Context appContext = app.getApplicationContext();
-        String pkgName = appContext.getPackageName();
+            Context appContext = app.getApplicationContext();
+            String pkgName = appContext.getPackageName();
 
-        return appContext.getPackageManager().getLaunchIntentForPackage(pkgName);
+            launchIntent = appContext.getPackageManager().getLaunchIntentForPackage(pkgName);
+        }
+
+        return launchIntent == null ? null : new Intent(launchIntent);
+    }
+
+    private void startLaunchIntent(Activity app) {
+        Intent intent = getLaunchIntent();
+
+        if (intent != null) {
+            app.startActivity(intent);
+        }
     }
 
     private Object getService(String name) {
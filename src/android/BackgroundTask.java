@@ -0,0 +1,67 @@
+package de.einfachhans.BackgroundMode;
+
+import android.app.Service;
+
+/**
+ * Work of another native plugin which runs inside the shared foreground
+ * service of the background mode.
+ *
+ * Register it with {@link ForegroundService#register(BackgroundTask)} instead
+ * of running an own service, wake lock and notification. The callbacks are
+ * invoked on the main thread.
+ */
+public interface BackgroundTask {
+
+    /**
+     * The foreground service is running and the CPU is kept awake.
+     * Invoked right away if the service is already running on registration.
+     */
+    void onStart (Service service);
+
+    /**
+     * The foreground service is about to stop, release any resources
+     * which require it.
+     */
+    void onStop ();
+
+    /**
+     * The user paused the background work through the notification,
+     * the wake lock is released until it gets resumed.
+     */
+    default void onPause () {}
+
+    /**
+     * The user resumed the background work through the notification.
+     */
+    default void onResume () {}
+
+    /**
+     * The user tapped a custom action button of the notification.
+     * Return true if the task handled the action. The action is delivered
+     * to JS as well once the web view runs in foreground again.
+     */
+    default boolean onAction (String id) {
+        return false;
+    }
+
+    /**
+     * The device got hotter, the battery low or the power save mode
+     * changed. Adapt the workers, thread priorities and tick intervals.
+     */
+    default void onQosChanged (QosLevel level) {}
+
+    /**
+     * Line which gets added to the shared notification, or null.
+     */
+    default String getNotificationText () {
+        return null;
+    }
+
+    /**
+     * If the task requires the foreground service to run while the app is
+     * in background, even if the background mode runs in tiered mode.
+     */
+    default boolean isImmediate () {
+        return true;
+    }
+}
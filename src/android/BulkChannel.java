@@ -0,0 +1,260 @@
+package de.einfachhans.BackgroundMode;
+
+import android.os.SystemClock;
+import android.webkit.WebResourceResponse;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.SecureRandom;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Bulk data channel between the native side and the web view.
+ *
+ * Large files are not serialized through the bridge but served same-origin
+ * by the asset loader of the web view, which asks the path handler of the
+ * plugin for every request of its origin (https://localhost by default).
+ * Each file gets a handle with a random token and a time to live, JS
+ * fetches it as ArrayBuffer or stream. The body is streamed from disk,
+ * no socket is opened and other apps cannot reach the files.
+ */
+final class BulkChannel {
+
+    // Path prefix of the handles below the origin of the web view
+    static final String PATH = "__bgmode_bulk/";
+
+    // Time to live of a handle if not specified
+    private static final long DEFAULT_TTL = 60000;
+
+    // Name of the sample files of the benchmark inside the cache directory
+    private static final String SAMPLE_PREFIX = "backgroundmode-bulk-";
+
+    private static final SecureRandom random = new SecureRandom();
+
+    // Files by the token of their handle
+    private static final Map<String, Entry> handles = new ConcurrentHashMap<>();
+
+    private BulkChannel() {}
+
+    /**
+     * Create a handle for the given file, which expires after the ttl in ms.
+     * Returns the handle, its URL below the given origin and the size.
+     */
+    static JSONObject open (File file, boolean once, long ttl, String origin)
+            throws IOException, JSONException
+    {
+        if (!file.isFile())
+            throw new IOException("No such file: " + file);
+
+        return open(new Entry(file, once, ttl > 0 ? ttl : DEFAULT_TTL, false), origin);
+    }
+
+    /**
+     * Create a handle for a new sample file of the given size, which gets
+     * deleted with the handle. Used to compare the channel with the bridge.
+     */
+    static JSONObject openSample (File dir, long size, String origin)
+            throws IOException, JSONException
+    {
+        File file     = File.createTempFile(SAMPLE_PREFIX, ".bin", dir);
+        byte[] buffer = new byte[64 * 1024];
+
+        for (int i = 0; i < buffer.length; i++) {
+            buffer[i] = (byte) i;
+        }
+
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            for (long left = size; left > 0; left -= buffer.length) {
+                out.write(buffer, 0, (int) Math.min(left, buffer.length));
+            }
+        }
+
+        return open(new Entry(file, false, DEFAULT_TTL, true), origin);
+    }
+
+    private static JSONObject open (Entry entry, String origin) throws JSONException
+    {
+        String token = newToken();
+
+        sweep();
+        handles.put(token, entry);
+
+        JSONObject handle = new JSONObject();
+        handle.put("handle", token);
+        handle.put("url", origin + "/" + PATH + token);
+        handle.put("size", entry.file.length());
+        handle.put("ttl", entry.expiresAt - SystemClock.elapsedRealtime());
+
+        return handle;
+    }
+
+    /**
+     * Read the whole file of a handle, used to send it through the bridge
+     * for comparison.
+     */
+    static byte[] read (String token) throws IOException
+    {
+        Entry entry = get(token);
+
+        if (entry == null)
+            throw new FileNotFoundException("No such handle: " + token);
+
+        byte[] bytes = new byte[(int) entry.file.length()];
+
+        try (InputStream in = new FileInputStream(entry.file)) {
+            int pos = 0;
+
+            while (pos < bytes.length) {
+                int n = in.read(bytes, pos, bytes.length - pos);
+
+                if (n < 0)
+                    break;
+
+                pos += n;
+            }
+        }
+
+        return bytes;
+    }
+
+    /**
+     * Invalidate a handle.
+     */
+    static void release (String token)
+    {
+        Entry entry = handles.remove(token);
+
+        if (entry != null) {
+            entry.dispose();
+        }
+    }
+
+    /**
+     * Invalidate all handles.
+     */
+    static void shutdown()
+    {
+        for (String token : handles.keySet()) {
+            release(token);
+        }
+    }
+
+    /**
+     * Answer a request of the web view for the given path, or return null
+     * if the path is not a bulk handle. Invoked off the main thread.
+     */
+    static WebResourceResponse serve (String path)
+    {
+        String name = path.startsWith("/") ? path.substring(1) : path;
+
+        if (!name.startsWith(PATH))
+            return null;
+
+        String token = name.substring(PATH.length());
+        Entry entry  = get(token);
+        InputStream body;
+
+        if (entry != null && entry.once) {
+            handles.remove(token);
+        }
+
+        try {
+            body = entry != null ? new FileInputStream(entry.file) : null;
+        } catch (IOException e) {
+            body = null;
+        }
+
+        Map<String, String> headers = new HashMap<>();
+        headers.put("Cache-Control", "no-store");
+
+        if (body == null)
+            return new WebResourceResponse("text/plain", null, 404, "Not Found", headers, null);
+
+        headers.put("Content-Length", String.valueOf(entry.file.length()));
+
+        return new WebResourceResponse("application/octet-stream", null, 200, "OK", headers, body);
+    }
+
+    /**
+     * The entry of a handle, null if unknown or expired.
+     */
+    private static Entry get (String token)
+    {
+        Entry entry = handles.get(token);
+
+        if (entry == null || entry.expiresAt > SystemClock.elapsedRealtime())
+            return entry;
+
+        release(token);
+        return null;
+    }
+
+    /**
+     * Drop the expired handles.
+     */
+    private static void sweep()
+    {
+        long now = SystemClock.elapsedRealtime();
+        Iterator<Map.Entry<String, Entry>> it = handles.entrySet().iterator();
+
+        while (it.hasNext()) {
+            Entry entry = it.next().getValue();
+
+            if (entry.expiresAt <= now) {
+                it.remove();
+                entry.dispose();
+            }
+        }
+    }
+
+    private static String newToken()
+    {
+        byte[] bytes = new byte[16];
+        StringBuilder token = new StringBuilder();
+
+        random.nextBytes(bytes);
+
+        for (byte b : bytes) {
+            token.append(String.format("%02x", b));
+        }
+
+        return token.toString();
+    }
+
+    /**
+     * A file served through a handle.
+     */
+    private static final class Entry {
+        final File file;
+        final boolean once;
+        final long expiresAt;
+
+        // Sample files get deleted with their handle
+        final boolean temp;
+
+        Entry (File file, boolean once, long ttl, boolean temp)
+        {
+            this.file      = file;
+            this.once      = once;
+            this.expiresAt = SystemClock.elapsedRealtime() + ttl;
+            this.temp      = temp;
+        }
+
+        void dispose()
+        {
+            if (temp) {
+                file.delete();
+            }
+        }
+    }
+}
@@ -0,0 +1,632 @@
+package de.einfachhans.BackgroundMode;
+
+import android.content.Context;
+import android.net.Uri;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Size and age bounded LRU cache on disk for assets fetched in background.
+ *
+ * Entries are written to a temp file and renamed into place, so readers
+ * never see partial content. The index lives in memory and is backed by
+ * an append-only journal which gets compacted once it grows too large.
+ * Reads only reorder the index in memory. They are journaled in batches,
+ * so the LRU order survives a restart without a disk write per read.
+ * Files are read without holding the index lock; an entry evicted while
+ * being read stays readable through the open file descriptor.
+ */
+final class DiskCache {
+
+    private static final String DIR_NAME = "backgroundmode-cache";
+    private static final String JOURNAL = "journal";
+    private static final String JOURNAL_TMP = "journal.tmp";
+
+    private static final long DEFAULT_MAX_SIZE = 50 * 1024 * 1024;
+    private static final long DEFAULT_MAX_AGE = 7L * 24 * 60 * 60 * 1000;
+
+    // Min time between two sweeps over all entries for expired ones
+    private static final long SWEEP_INTERVAL = 60 * 60 * 1000;
+
+    // Reads collected before they are written to the journal at once
+    private static final int READ_BATCH = 256;
+
+    private static DiskCache instance;
+
+    private final File dir;
+
+    // Entries in access order, eldest first
+    private final LinkedHashMap<String, Entry> index = new LinkedHashMap<>(64, 0.75f, true);
+
+    private Writer journal;
+    private int journalLines = 0;
+
+    // Entries read since the journal was written last. Kept apart from
+    // the index, a get on it would reorder it while trim iterates.
+    private final Map<String, Entry> reads = new LinkedHashMap<>();
+
+    private long size = 0;
+    private long maxSize = DEFAULT_MAX_SIZE;
+    private long maxAge = DEFAULT_MAX_AGE;
+
+    // Time of the last sweep for expired entries
+    private long lastSweep = 0;
+
+    private DiskCache (File dir)
+    {
+        this.dir = dir;
+    }
+
+    /**
+     * The cache of the app, opened on first use.
+     */
+    static synchronized DiskCache get (Context context) throws IOException
+    {
+        if (instance == null) {
+            File dir = new File(context.getCacheDir(), DIR_NAME);
+
+            if (!dir.isDirectory() && !dir.mkdirs())
+                throw new IOException("Cannot create " + dir);
+
+            instance = new DiskCache(dir);
+            instance.open();
+        }
+
+        return instance;
+    }
+
+    /**
+     * Update the limits and evict entries exceeding them.
+     */
+    synchronized void setLimits (long maxSize, long maxAge) throws IOException
+    {
+        if (maxSize > 0) this.maxSize = maxSize;
+        if (maxAge > 0)  this.maxAge  = maxAge;
+
+        trim(true);
+    }
+
+    /**
+     * Store the data under the given key and return its stats.
+     */
+    JSONObject put (String key, byte[] data) throws IOException
+    {
+        File tmp = createTemp(key);
+
+        try (FileOutputStream out = new FileOutputStream(tmp)) {
+            out.write(data);
+            out.getFD().sync();
+        }
+
+        return commit(key, tmp);
+    }
+
+    /**
+     * A new temp file inside the cache dir to write an entry into.
+     */
+    File createTemp (String key) throws IOException
+    {
+        return File.createTempFile(hash(key), ".tmp", dir);
+    }
+
+    /**
+     * Store the written temp file under the given key and return its stats.
+     */
+    JSONObject commit (String key, File tmp) throws IOException
+    {
+        String name = hash(key);
+
+        synchronized (this) {
+            File file = new File(dir, name);
+
+            if (!tmp.renameTo(file)) {
+                tmp.delete();
+                throw new IOException("Cannot write entry " + key);
+            }
+
+            Entry old = index.remove(key);
+
+            if (old != null) {
+                size -= old.size;
+            }
+
+            Entry entry = new Entry(name, file.length(), System.currentTimeMillis());
+
+            index.put(key, entry);
+            size += entry.size;
+
+            log("PUT", key, entry);
+            trim(false);
+
+            if (!index.containsKey(key))
+                throw new IOException("Entry exceeds the cache size " + key);
+
+            return toStat(key, entry);
+        }
+    }
+
+    /**
+     * The content of the entry or null if missing or expired. An entry
+     * evicted between the lookup and the open is a miss as well.
+     */
+    byte[] read (String key) throws IOException
+    {
+        File file = getFile(key);
+
+        if (file == null)
+            return null;
+
+        FileInputStream stream;
+
+        try {
+            stream = new FileInputStream(file);
+        } catch (FileNotFoundException e) {
+            return null;
+        }
+
+        try (FileInputStream in = stream) {
+            byte[] data = new byte[(int) in.getChannel().size()];
+            int offset  = 0;
+
+            while (offset < data.length) {
+                int read = in.read(data, offset, data.length - offset);
+                if (read < 0) break;
+                offset += read;
+            }
+
+            return data;
+        }
+    }
+
+    /**
+     * The stats of the entry or null if missing or expired.
+     */
+    synchronized JSONObject stat (String key) throws IOException
+    {
+        Entry entry = lookup(key);
+        return entry == null ? null : toStat(key, entry);
+    }
+
+    /**
+     * The file of the entry or null if missing or expired.
+     */
+    synchronized File getFile (String key) throws IOException
+    {
+        Entry entry = lookup(key);
+        return entry == null ? null : new File(dir, entry.name);
+    }
+
+    /**
+     * Remove the entry of the given key.
+     */
+    synchronized void remove (String key) throws IOException
+    {
+        Entry entry = index.remove(key);
+
+        if (entry != null) {
+            delete(key, entry);
+        }
+    }
+
+    /**
+     * Count, size and limits of the cache.
+     */
+    synchronized JSONObject getStats()
+    {
+        JSONObject stats = new JSONObject();
+
+        try {
+            stats.put("count", index.size());
+            stats.put("size", size);
+            stats.put("maxSize", maxSize);
+            stats.put("maxAge", maxAge);
+        } catch (JSONException e) {
+            // Keys are never null
+        }
+
+        return stats;
+    }
+
+    /**
+     * Measure the hit latency and the eviction throughput with a separate
+     * cache of the given number of entries, which is deleted afterwards.
+     * The cache is filled without fsync, so the fill rate is an upper bound.
+     */
+    static JSONObject benchmark (Context context, int count, int entrySize)
+            throws IOException, JSONException
+    {
+        File dir = new File(context.getCacheDir(), DIR_NAME + "-bench");
+
+        deleteAll(dir);
+
+        if (!dir.mkdirs())
+            throw new IOException("Cannot create " + dir);
+
+        DiskCache cache = new DiskCache(dir);
+        byte[] data     = new byte[Math.max(1, entrySize)];
+        JSONObject result = new JSONObject();
+
+        try {
+            cache.open();
+            cache.maxAge = Long.MAX_VALUE;
+            cache.maxSize = Long.MAX_VALUE;
+
+            long start = System.nanoTime();
+
+            for (int i = 0; i < count; i++) {
+                File tmp = cache.createTemp("k" + i);
+
+                try (FileOutputStream out = new FileOutputStream(tmp)) {
+                    out.write(data);
+                }
+
+                cache.commit("k" + i, tmp);
+            }
+
+            long fill = System.nanoTime() - start;
+
+            // Random hits, each with the lock, the LRU update and the batched journal
+            Random random  = new Random(42);
+            long[] samples = new long[Math.min(count, 10000)];
+
+            for (int i = 0; i < samples.length; i++) {
+                long t = System.nanoTime();
+                cache.getFile("k" + random.nextInt(count));
+                samples[i] = System.nanoTime() - t;
+            }
+
+            Arrays.sort(samples);
+
+            long total = 0;
+
+            for (long sample : samples) {
+                total += sample;
+            }
+
+            // Evict the least recently used half
+            start = System.nanoTime();
+            cache.setLimits(Math.max(1, cache.size / 2), 0);
+
+            long evict   = System.nanoTime() - start;
+            int evicted  = count - cache.index.size();
+
+            result.put("entries", count);
+            result.put("entrySize", data.length);
+            result.put("fillPerSec", count * 1e9 / Math.max(1, fill));
+            result.put("hitAvgUs", samples.length == 0 ? 0 : total / samples.length / 1000.0);
+            result.put("hitP50Us", samples.length == 0 ? 0 : samples[samples.length / 2] / 1000.0);
+            result.put("hitP99Us", samples.length == 0 ? 0
+                    : samples[(int) (samples.length * 0.99)] / 1000.0);
+            result.put("evicted", evicted);
+            result.put("evictPerSec", evicted * 1e9 / Math.max(1, evict));
+        } finally {
+            if (cache.journal != null) {
+                cache.journal.close();
+            }
+            deleteAll(dir);
+        }
+
+        return result;
+    }
+
+    private static void deleteAll (File dir)
+    {
+        File[] files = dir.listFiles();
+
+        if (files != null) {
+            for (File f : files) {
+                f.delete();
+            }
+        }
+
+        dir.delete();
+    }
+
+    /**
+     * Find a valid entry and mark it as recently used.
+     */
+    private Entry lookup (String key) throws IOException
+    {
+        Entry entry = index.get(key);
+
+        if (entry == null)
+            return null;
+
+        if (isExpired(entry)) {
+            index.remove(key);
+            delete(key, entry);
+            return null;
+        }
+
+        entry.accessed = System.currentTimeMillis();
+        reads.put(key, entry);
+
+        if (reads.size() >= READ_BATCH) {
+            flushReads();
+            maybeCompact();
+        }
+
+        return entry;
+    }
+
+    /**
+     * Journal the collected reads with a single write.
+     */
+    private void flushReads() throws IOException
+    {
+        if (reads.isEmpty())
+            return;
+
+        StringBuilder lines = new StringBuilder();
+
+        for (Map.Entry<String, Entry> item : reads.entrySet()) {
+            lines.append(toLine("READ", item.getKey(), item.getValue()));
+            journalLines++;
+        }
+
+        reads.clear();
+        journal.write(lines.toString());
+        journal.flush();
+    }
+
+    /**
+     * Evict the least recently used entries until the cache fits into its
+     * size limit. Expired entries are swept once per interval or if forced,
+     * in between they are dropped on lookup.
+     */
+    private void trim (boolean sweep) throws IOException
+    {
+        Iterator<Map.Entry<String, Entry>> it = index.entrySet().iterator();
+
+        while (size > maxSize && it.hasNext()) {
+            Map.Entry<String, Entry> item = it.next();
+
+            it.remove();
+            delete(item.getKey(), item.getValue());
+        }
+
+        long now = System.currentTimeMillis();
+
+        if (sweep || now - lastSweep > SWEEP_INTERVAL) {
+            lastSweep = now;
+            it = index.entrySet().iterator();
+
+            while (it.hasNext()) {
+                Map.Entry<String, Entry> item = it.next();
+
+                if (!isExpired(item.getValue()))
+                    continue;
+
+                it.remove();
+                delete(item.getKey(), item.getValue());
+            }
+        }
+
+        maybeCompact();
+    }
+
+    /**
+     * Rewrite the journal once it holds much more lines than entries.
+     */
+    private void maybeCompact() throws IOException
+    {
+        if (journalLines > 2 * index.size() + 1000) {
+            compact();
+        }
+    }
+
+    private boolean isExpired (Entry entry)
+    {
+        return System.currentTimeMillis() - entry.created > maxAge;
+    }
+
+    private void delete (String key, Entry entry) throws IOException
+    {
+        size -= entry.size;
+        new File(dir, entry.name).delete();
+        log("DEL", key, null);
+    }
+
+    /**
+     * Replay the journal and drop files which are not part of the index.
+     */
+    private void open() throws IOException
+    {
+        File file = new File(dir, JOURNAL);
+
+        if (file.exists()) {
+            try (BufferedReader in = new BufferedReader(new FileReader(file))) {
+                String line;
+
+                while ((line = in.readLine()) != null) {
+                    replay(line);
+                    journalLines++;
+                }
+            }
+        }
+
+        // Restore the access order, journals of older versions lack reads
+        Map<String, Entry> entries = new HashMap<>(index);
+        List<String> keys = new ArrayList<>(entries.keySet());
+
+        Collections.sort(keys, (a, b) -> Long.compare(entries.get(a).accessed, entries.get(b).accessed));
+        index.clear();
+
+        for (String key : keys) {
+            index.put(key, entries.get(key));
+        }
+
+        Set<String> known = new HashSet<>();
+
+        for (Entry entry : index.values()) {
+            known.add(entry.name);
+        }
+
+        File[] files = dir.listFiles();
+
+        if (files != null) {
+            for (File f : files) {
+                String name = f.getName();
+
+                if (!name.startsWith(JOURNAL) && !known.contains(name)) {
+                    f.delete();
+                }
+            }
+        }
+
+        compact();
+    }
+
+    /**
+     * Apply a single journal line, broken lines are ignored.
+     */
+    private void replay (String line)
+    {
+        String[] parts = line.split(" ", 5);
+
+        try {
+            if ((parts[0].equals("PUT") || parts[0].equals("READ")) && parts.length == 5) {
+                String key  = Uri.decode(parts[1]);
+                Entry entry = new Entry(hash(key), Long.parseLong(parts[2]),
+                        Long.parseLong(parts[3]));
+
+                entry.accessed = Long.parseLong(parts[4]);
+
+                Entry old = index.put(key, entry);
+                if (old != null) size -= old.size;
+                size += entry.size;
+            } else if (parts[0].equals("DEL") && parts.length >= 2) {
+                Entry old = index.remove(Uri.decode(parts[1]));
+                if (old != null) size -= old.size;
+            }
+        } catch (RuntimeException e) {
+            // Torn write at the end of the journal
+        }
+    }
+
+    /**
+     * Rewrite the journal with the current index only.
+     */
+    private void compact() throws IOException
+    {
+        if (journal != null) {
+            journal.close();
+        }
+
+        // The access order of the index already contains the reads
+        reads.clear();
+
+        File tmp = new File(dir, JOURNAL_TMP);
+
+        try (Writer out = new FileWriter(tmp)) {
+            for (Map.Entry<String, Entry> item : index.entrySet()) {
+                out.write(toLine("PUT", item.getKey(), item.getValue()));
+            }
+        }
+
+        if (!tmp.renameTo(new File(dir, JOURNAL)))
+            throw new IOException("Cannot compact cache journal");
+
+        journal      = new FileWriter(new File(dir, JOURNAL), true);
+        journalLines = index.size();
+    }
+
+    private void log (String op, String key, Entry entry) throws IOException
+    {
+        // Reads go first, a later DEL of the same key must win on replay
+        reads.remove(key);
+        flushReads();
+
+        journal.write(toLine(op, key, entry));
+        journal.flush();
+        journalLines++;
+    }
+
+    private static String toLine (String op, String key, Entry entry)
+    {
+        if (entry == null)
+            return op + " " + Uri.encode(key) + "\n";
+
+        return op + " " + Uri.encode(key) + " " + entry.size + " "
+                + entry.created + " " + entry.accessed + "\n";
+    }
+
+    private JSONObject toStat (String key, Entry entry)
+    {
+        JSONObject stat = new JSONObject();
+
+        try {
+            stat.put("key", key);
+            stat.put("size", entry.size);
+            stat.put("created", entry.created);
+            stat.put("accessed", entry.accessed);
+            stat.put("path", Uri.fromFile(new File(dir, entry.name)).toString());
+        } catch (JSONException e) {
+            // Keys are never null
+        }
+
+        return stat;
+    }
+
+    /**
+     * File name of the given key.
+     */
+    private static String hash (String key)
+    {
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-1");
+            StringBuilder sb = new StringBuilder();
+
+            for (byte b : md.digest(key.getBytes(StandardCharsets.UTF_8))) {
+                sb.append(String.format("%02x", b));
+            }
+
+            return sb.toString();
+        } catch (NoSuchAlgorithmException e) {
+            return Integer.toHexString(key.hashCode());
+        }
+    }
+
+    /**
+     * A cached file with its size and timestamps.
+     */
+    private static final class Entry {
+        final String name;
+        final long size;
+        final long created;
+        long accessed;
+
+        Entry (String name, long size, long created)
+        {
+            this.name     = name;
+            this.size     = size;
+            this.created  = created;
+            this.accessed = created;
+        }
+    }
+}
@@ -0,0 +1,391 @@
+package de.einfachhans.BackgroundMode;
+
+import android.content.Context;
+import android.net.TrafficStats;
+
+import org.apache.cordova.CallbackContext;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Downloads into the disk cache on behalf of JS.
+ *
+ * The sockets of a download are tagged with TrafficMonitor.STATS_TAG and
+ * its bytes are reported to the monitor. Bulk downloads follow the policy
+ * for metered and roaming networks. They are throttled between the reads
+ * of the body, and while the policy pauses them they give up their worker
+ * and get queued again once the policy changes. The partial file is kept
+ * and continued with a range request if the server supports it. The
+ * number of parallel downloads follows the workers of the current QosLevel.
+ */
+final class Downloader {
+
+    private static final int BUFFER_SIZE = 32 * 1024;
+    private static final int TIMEOUT = 30000;
+
+    // Idle workers end after this time
+    private static final long KEEP_ALIVE = 30000;
+
+    // Interval to recheck the policy of parked downloads if the network
+    // state gets polled
+    private static final long RECHECK_INTERVAL = 5000;
+
+    private static final ThreadPoolExecutor executor = new ThreadPoolExecutor(
+            QosLevel.FULL.workers, QosLevel.FULL.workers, KEEP_ALIVE, TimeUnit.MILLISECONDS,
+            new LinkedBlockingQueue<>());
+
+    static {
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    // Rechecks the policy of parked downloads, only used without callback
+    private static final ScheduledExecutorService timer =
+            Executors.newSingleThreadScheduledExecutor();
+
+    // Active downloads by id, running, queued or parked
+    private static final Map<String, Job> downloads = new ConcurrentHashMap<>();
+
+    // Downloads paused by the policy, they don't hold a worker
+    private static final List<Job> parked = new ArrayList<>();
+
+    // If a recheck of the parked downloads is scheduled
+    private static boolean recheckScheduled = false;
+
+    private Downloader() {}
+
+    /**
+     * Download the url into the cache entry of the given key. The pause
+     * listener is invoked when a bulk download gets paused by the policy
+     * and when it continues, the listener once the download is done,
+     * failed or was cancelled.
+     */
+    static void start (Context context, String id, String url, String key, JSONObject spec,
+                       CallbackContext callback, TrafficMonitor.PauseListener pauseListener,
+                       Runnable listener)
+    {
+        JSONObject opts = spec != null ? spec : new JSONObject();
+        Job job = new Job(context, id, url, key, opts, callback, pauseListener, listener);
+
+        downloads.put(id, job);
+        onQosChanged(ThrottleGovernor.getLevel());
+
+        TrafficMonitor.init(context);
+        executor.execute(job);
+    }
+
+    /**
+     * Run as many downloads in parallel as the level has workers. Running
+     * downloads are not interrupted, they only take over the priority.
+     */
+    static synchronized void onQosChanged (QosLevel level)
+    {
+        int workers = Math.max(1, Math.min(level.workers, executor.getMaximumPoolSize()));
+
+        if (executor.getCorePoolSize() != workers) {
+            executor.setCorePoolSize(workers);
+        }
+    }
+
+    /**
+     * The policy or the network changed, queue the parked downloads again
+     * unless they are still paused.
+     */
+    static void onPolicyChanged()
+    {
+        List<Job> resumed = new ArrayList<>();
+
+        synchronized (Downloader.class) {
+            if (parked.isEmpty() || TrafficMonitor.PAUSE.equals(TrafficMonitor.getPolicy()))
+                return;
+
+            resumed.addAll(parked);
+            parked.clear();
+        }
+
+        for (Job job : resumed) {
+            job.pauseListener.onPause(false);
+            executor.execute(job);
+        }
+    }
+
+    /**
+     * Stop a download, the partial file is dropped.
+     */
+    static void cancel (String id)
+    {
+        Job job = downloads.get(id);
+
+        if (job == null)
+            return;
+
+        job.cancelled.set(true);
+
+        boolean wasParked;
+
+        synchronized (Downloader.class) {
+            wasParked = parked.remove(job);
+        }
+
+        if (wasParked) {
+            job.finish();
+        }
+    }
+
+    /**
+     * Stop all downloads, used when the plugin gets destroyed.
+     */
+    static void cancelAll()
+    {
+        for (String id : downloads.keySet()) {
+            cancel(id);
+        }
+    }
+
+    /**
+     * Put a download aside until the policy allows it again.
+     */
+    private static void park (Job job)
+    {
+        synchronized (Downloader.class) {
+            parked.add(job);
+            scheduleRecheck();
+        }
+
+        job.pauseListener.onPause(true);
+
+        // Cancelled while it got parked
+        if (job.cancelled.get()) {
+            cancel(job.id);
+            return;
+        }
+
+        // The policy might have changed in between
+        onPolicyChanged();
+    }
+
+    /**
+     * Without network callback the state gets polled, check the parked
+     * downloads from time to time.
+     */
+    private static void scheduleRecheck()
+    {
+        if (recheckScheduled || TrafficMonitor.isListening())
+            return;
+
+        recheckScheduled = true;
+
+        timer.schedule(() -> {
+            synchronized (Downloader.class) {
+                recheckScheduled = false;
+            }
+
+            onPolicyChanged();
+
+            synchronized (Downloader.class) {
+                if (!parked.isEmpty()) {
+                    scheduleRecheck();
+                }
+            }
+        }, RECHECK_INTERVAL, TimeUnit.MILLISECONDS);
+    }
+
+    private static HttpURLConnection open (String url, JSONObject headers, long offset)
+            throws IOException
+    {
+        HttpURLConnection conn = (HttpURLConnection) new URL(url).openConnection();
+
+        conn.setConnectTimeout(TIMEOUT);
+        conn.setReadTimeout(TIMEOUT);
+
+        if (headers != null) {
+            Iterator<String> keys = headers.keys();
+
+            while (keys.hasNext()) {
+                String name = keys.next();
+                conn.setRequestProperty(name, headers.optString(name));
+            }
+        }
+
+        if (offset > 0) {
+            conn.setRequestProperty("Range", "bytes=" + offset + "-");
+        }
+
+        int status = conn.getResponseCode();
+
+        // The partial file does not fit the resource anymore, start over
+        if (status == 416 && offset > 0) {
+            conn.disconnect();
+            return open(url, headers, 0);
+        }
+
+        if (status < 200 || status >= 300) {
+            conn.disconnect();
+            throw new IOException("HTTP " + status);
+        }
+
+        return conn;
+    }
+
+    /**
+     * A single download. Runs on a worker until it is done, failed,
+     * cancelled or paused by the policy.
+     */
+    private static final class Job implements Runnable {
+        final Context context;
+        final String id;
+        final String url;
+        final String key;
+        final JSONObject opts;
+        final CallbackContext callback;
+        final TrafficMonitor.PauseListener pauseListener;
+        final Runnable listener;
+        final boolean bulk;
+        final AtomicBoolean cancelled = new AtomicBoolean(false);
+
+        // Partial file and the bytes in it, kept while parked
+        File tmp;
+        long bytes;
+
+        Job (Context context, String id, String url, String key, JSONObject opts,
+             CallbackContext callback, TrafficMonitor.PauseListener pauseListener,
+             Runnable listener)
+        {
+            this.context       = context;
+            this.id            = id;
+            this.url           = url;
+            this.key           = key;
+            this.opts          = opts;
+            this.callback      = callback;
+            this.pauseListener = pauseListener;
+            this.listener      = listener;
+            this.bulk          = opts.optBoolean("bulk", true);
+        }
+
+        @Override
+        public void run()
+        {
+            HttpURLConnection conn = null;
+            boolean paused = false;
+
+            ThrottleGovernor.enterWorker();
+            TrafficStats.setThreadStatsTag(TrafficMonitor.STATS_TAG);
+
+            try {
+                DiskCache cache = DiskCache.get(context);
+
+                if (bulk && isPaused()) {
+                    paused = true;
+                    return;
+                }
+
+                if (tmp == null) {
+                    tmp = cache.createTemp(key);
+                }
+
+                conn = open(url, opts.optJSONObject("headers"), bytes);
+
+                // The server ignored the range, start over
+                if (conn.getResponseCode() != HttpURLConnection.HTTP_PARTIAL) {
+                    bytes = 0;
+                }
+
+                paused = !read(conn);
+
+                if (paused || cancelled.get())
+                    return;
+
+                JSONObject stat = cache.commit(key, tmp);
+                stat.put("bytes", bytes);
+                callback.success(stat);
+            } catch (Exception e) {
+                if (!cancelled.get()) {
+                    LogRing.error("Downloader", e);
+                    callback.error(String.format("Cannot download %s: %s", url, e.getMessage()));
+                }
+            } finally {
+                if (conn != null) {
+                    conn.disconnect();
+                }
+
+                TrafficStats.clearThreadStatsTag();
+                ThrottleGovernor.leaveWorker();
+
+                if (paused && !cancelled.get()) {
+                    park(this);
+                } else {
+                    finish();
+                }
+            }
+        }
+
+        /**
+         * Copy the body into the file. Returns false if the policy paused
+         * the download, the bytes so far are kept.
+         */
+        private boolean read (HttpURLConnection conn) throws IOException, InterruptedException
+        {
+            byte[] buffer = new byte[BUFFER_SIZE];
+
+            try (InputStream in = conn.getInputStream();
+                 FileOutputStream out = new FileOutputStream(tmp, bytes > 0)) {
+                int n;
+
+                while (!cancelled.get() && (n = in.read(buffer)) != -1) {
+                    out.write(buffer, 0, n);
+                    bytes += n;
+
+                    TrafficMonitor.onTransferred(n, 0);
+
+                    if (!bulk)
+                        continue;
+
+                    if (isPaused()) {
+                        out.getFD().sync();
+                        return false;
+                    }
+
+                    TrafficMonitor.throttle(n, cancelled);
+                }
+
+                out.getFD().sync();
+            }
+
+            return true;
+        }
+
+        private boolean isPaused()
+        {
+            return TrafficMonitor.PAUSE.equals(TrafficMonitor.getPolicy());
+        }
+
+        /**
+         * Drop the partial file and report the end of the download.
+         */
+        void finish()
+        {
+            if (tmp != null && tmp.exists()) {
+                tmp.delete();
+            }
+
+            downloads.remove(id);
+            listener.run();
+        }
+    }
+}
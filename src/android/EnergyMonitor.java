@@ -0,0 +1,267 @@
+package de.einfachhans.BackgroundMode;
+
+import android.net.TrafficStats;
+import android.os.Process;
+import android.os.SystemClock;
+import android.system.Os;
+import android.system.OsConstants;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Energy accounting of the background sessions and jobs.
+ *
+ * A session lasts from creation to destruction of the foreground service,
+ * a job from start to finish of a task. For both the process CPU time,
+ * the held time of the service wake lock and the network bytes of the app
+ * are sampled and turned into a rough charge estimate in mAh. Jobs which
+ * overlap share the process wide counters and are not disjoint.
+ */
+final class EnergyMonitor {
+
+    // Rough current draw used for the estimate
+    private static final double CPU_MA  = 200;
+    private static final double WAKE_MA = 10;
+    private static final double NET_MAH_PER_MB = 0.5;
+
+    private static final double MS_PER_HOUR = 60 * 60 * 1000;
+
+    // Number of finished sessions and jobs kept for the summary
+    private static final int HISTORY_SIZE = 20;
+
+    // Start sample of the running session or null
+    private static Sample session;
+
+    // Mode the session runs in, e.g. wakelock
+    private static String sessionMode;
+
+    // Start samples of the running jobs
+    private static final Map<String, Sample> jobs = new HashMap<>();
+
+    // Finished sessions and jobs, newest last
+    private static final Deque<JSONObject> sessions = new ArrayDeque<>();
+    private static final Deque<JSONObject> finishedJobs = new ArrayDeque<>();
+
+    // Accumulated wake lock time and the time it was acquired or 0
+    private static long wakeLockTime = 0;
+    private static long wakeLockSince = 0;
+
+    // Totals of all finished sessions
+    private static double totalCost = 0;
+    private static long totalSessions = 0;
+
+    private EnergyMonitor() {}
+
+    /**
+     * The foreground service got created.
+     */
+    static synchronized void startSession (String mode)
+    {
+        session     = Sample.take();
+        sessionMode = mode;
+    }
+
+    /**
+     * The foreground service got destroyed.
+     */
+    static synchronized void endSession()
+    {
+        if (session == null)
+            return;
+
+        JSONObject item = session.diff(Sample.take());
+
+        put(item, "mode", sessionMode);
+        totalCost += item.optDouble("cost", 0);
+        totalSessions++;
+
+        add(sessions, item);
+        session = null;
+    }
+
+    /**
+     * A task started running.
+     */
+    static synchronized void startJob (String id)
+    {
+        if (!jobs.containsKey(id)) {
+            jobs.put(id, Sample.take());
+        }
+    }
+
+    /**
+     * A task finished.
+     */
+    static synchronized void endJob (String id)
+    {
+        Sample start = jobs.remove(id);
+
+        if (start == null)
+            return;
+
+        JSONObject item = start.diff(Sample.take());
+
+        put(item, "id", id);
+        add(finishedJobs, item);
+    }
+
+    /**
+     * The service wake lock got acquired.
+     */
+    static synchronized void onWakeLockAcquired()
+    {
+        if (wakeLockSince == 0) {
+            wakeLockSince = SystemClock.elapsedRealtime();
+        }
+    }
+
+    /**
+     * The service wake lock got released.
+     */
+    static synchronized void onWakeLockReleased()
+    {
+        if (wakeLockSince != 0) {
+            wakeLockTime += SystemClock.elapsedRealtime() - wakeLockSince;
+            wakeLockSince = 0;
+        }
+    }
+
+    /**
+     * Rolling summary of the recent sessions and jobs.
+     */
+    static synchronized JSONObject getSummary()
+    {
+        JSONObject summary = new JSONObject();
+
+        put(summary, "sessions", totalSessions);
+        put(summary, "totalCost", totalCost);
+        put(summary, "current", session == null ? null : session.diff(Sample.take()));
+        put(summary, "recentSessions", new JSONArray(sessions));
+        put(summary, "recentJobs", new JSONArray(finishedJobs));
+        put(summary, "traffic", TrafficMonitor.getSummary());
+
+        return summary;
+    }
+
+    private static long getWakeLockTime()
+    {
+        long time = wakeLockTime;
+
+        if (wakeLockSince != 0) {
+            time += SystemClock.elapsedRealtime() - wakeLockSince;
+        }
+
+        return time;
+    }
+
+    private static void add (Deque<JSONObject> history, JSONObject item)
+    {
+        history.addLast(item);
+
+        if (history.size() > HISTORY_SIZE) {
+            history.removeFirst();
+        }
+    }
+
+    private static void put (JSONObject obj, String key, Object value)
+    {
+        try {
+            obj.put(key, value);
+        } catch (JSONException e) {
+            // Keys are never null
+        }
+    }
+
+    /**
+     * Snapshot of the counters at a given time.
+     */
+    private static final class Sample {
+
+        // Length of a clock tick of /proc/self/stat in ms
+        private static final long TICK_MS = 1000 / Math.max(1, Os.sysconf(OsConstants._SC_CLK_TCK));
+
+        final long time;
+        final long cpu;
+        final long kernelCpu;
+        final long wakeLock;
+        final long rx;
+        final long tx;
+
+        private Sample (long time, long cpu, long kernelCpu, long wakeLock, long rx, long tx)
+        {
+            this.time      = time;
+            this.cpu       = cpu;
+            this.kernelCpu = kernelCpu;
+            this.wakeLock  = wakeLock;
+            this.rx        = rx;
+            this.tx        = tx;
+        }
+
+        static Sample take()
+        {
+            int uid = Process.myUid();
+
+            return new Sample(SystemClock.elapsedRealtime(),
+                    Process.getElapsedCpuTime(),
+                    readKernelCpuTime(),
+                    getWakeLockTime(),
+                    Math.max(0, TrafficStats.getUidRxBytes(uid)),
+                    Math.max(0, TrafficStats.getUidTxBytes(uid)));
+        }
+
+        /**
+         * The usage between this and the given later sample.
+         */
+        JSONObject diff (Sample end)
+        {
+            JSONObject item = new JSONObject();
+            long cpuMs  = end.cpu - cpu;
+            long wakeMs = end.wakeLock - wakeLock;
+            long bytes  = (end.rx - rx) + (end.tx - tx);
+
+            double cost = cpuMs * CPU_MA / MS_PER_HOUR
+                    + Math.max(0, wakeMs - cpuMs) * WAKE_MA / MS_PER_HOUR
+                    + bytes / (1024.0 * 1024.0) * NET_MAH_PER_MB;
+
+            put(item, "duration", end.time - time);
+            put(item, "cpu", cpuMs);
+            put(item, "kernelCpu", end.kernelCpu - kernelCpu);
+            put(item, "wakeLock", wakeMs);
+            put(item, "rx", end.rx - rx);
+            put(item, "tx", end.tx - tx);
+            put(item, "cost", cost);
+
+            return item;
+        }
+
+        /**
+         * The kernel time (stime) of the process from /proc/self/stat in ms.
+         */
+        private static long readKernelCpuTime()
+        {
+            try (BufferedReader in = new BufferedReader(new FileReader("/proc/self/stat"))) {
+                String line = in.readLine();
+
+                if (line == null)
+                    return 0;
+
+                // Fields after the command name, which may contain spaces
+                String[] fields = line.substring(line.lastIndexOf(')') + 2).split(" ");
+
+                return Long.parseLong(fields[12]) * TICK_MS;
+            } catch (IOException | RuntimeException e) {
+                return 0;
+            }
+        }
+    }
+}
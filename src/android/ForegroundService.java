@@ -6,18 +6,31 @@ import android.app.NotificationChannel;
 import android.app.NotificationManager;
 import android.app.PendingIntent;
 import android.app.Service;
+import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
+import android.content.pm.PackageManager;
 import android.content.pm.ServiceInfo;
 import android.content.res.Resources;
 import android.graphics.Color;
+import android.graphics.drawable.Icon;
 import android.os.Binder;
 import android.os.Build;
+import android.os.Handler;
 import android.os.IBinder;
+import android.os.Looper;
 import android.os.PowerManager;
+import android.os.SystemClock;
 
+import org.json.JSONArray;
 import org.json.JSONObject;
 
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+
 import static android.os.PowerManager.PARTIAL_WAKE_LOCK;
 
 public class ForegroundService extends Service {
@@ -28,35 +41,210 @@ public class ForegroundService extends Service {
     private static final String NOTIFICATION_TEXT = "Doing heavy tasks.";
     private static final String NOTIFICATION_ICON = "ic_launcher";
 
+    // Tasks of other plugins sharing this service
+    private static final List<BackgroundTask> tasks = new CopyOnWriteArrayList<>();
+
+    // Tasks which got started and not stopped yet, main thread only
+    private static final Set<BackgroundTask> started = new HashSet<>();
+
+    // Callbacks of the tasks are invoked on the main thread
+    private static final Handler mainHandler = new Handler(Looper.getMainLooper());
+
+    // The running service or null
+    private static volatile ForegroundService running;
+
+    // Set by the pause and resume notification actions
+    private static boolean paused = false;
+
+    // The channel exists once created, no need to recreate it per service
+    private static boolean channelCreated = false;
+
+    // Time the last onCreate took in ms, -1 if none yet
+    private static double createTime = -1;
+
     private final IBinder binder = new ForegroundBinder();
     private PowerManager.WakeLock wakeLock;
 
+    // Silent track which keeps the app alive instead of the wake lock
+    private SilentAudio audio;
+
+    // Settings of the currently shown notification
+    private JSONObject settings;
+
+    // Elapsed realtime of the last notification update
+    private long lastNotificationAt = 0;
+
+    // Throttled notification update
+    private final Runnable notifyTask = this::refreshNotification;
+
+    // Adapts the background work to the thermal and battery state
+    private ThrottleGovernor governor;
+
     @Override
     public IBinder onBind (Intent intent) {
         return binder;
     }
 
-    class ForegroundBinder extends Binder {
-        ForegroundService getService() {
+    public class ForegroundBinder extends Binder {
+        public ForegroundService getService() {
             return ForegroundService.this;
         }
     }
 
+    /**
+     * Register work of another plugin with the shared service. The task
+     * gets started right away if the service is already running.
+     */
+    public static void register (BackgroundTask task) {
+        if (task == null || tasks.contains(task))
+            return;
+
+        tasks.add(task);
+
+        mainHandler.post(() -> {
+            ForegroundService service = running;
+
+            if (service != null && tasks.contains(task)) {
+                service.startTask(task);
+                service.refreshNotification();
+            }
+
+            BackgroundMode.onTasksChanged();
+        });
+    }
+
+    /**
+     * Unregister work of another plugin. The task gets stopped right away
+     * if the service is running.
+     */
+    public static void unregister (BackgroundTask task) {
+        if (!tasks.remove(task))
+            return;
+
+        mainHandler.post(() -> {
+            ForegroundService service = running;
+
+            stopTask(task);
+
+            if (service != null) {
+                service.refreshNotification();
+            }
+
+            BackgroundMode.onTasksChanged();
+        });
+    }
+
+    /**
+     * Rebuild the shared notification, e.g. after a task changed its text.
+     */
+    public static void requestNotificationUpdate() {
+        mainHandler.post(() -> {
+            ForegroundService service = running;
+
+            if (service != null) {
+                service.scheduleNotification();
+            }
+        });
+    }
+
+    /**
+     * If any registered task requires the service to run.
+     */
+    static boolean hasImmediateTasks() {
+        for (BackgroundTask task : tasks) {
+            if (task.isImmediate())
+                return true;
+        }
+        return false;
+    }
+
     @Override
     public void onCreate() {
+        long start = SystemClock.elapsedRealtimeNanos();
+
         super.onCreate();
+        LogRing.initAsync(this);
         createNotificationChannel();
         keepAwake();
+        EnergyMonitor.startSession(audio != null ? "audio" : "wakelock");
+        TrafficMonitor.startSession(this);
+        ServiceWatchdog.start(this);
+
+        running = this;
+
+        for (BackgroundTask task : tasks) {
+            startTask(task);
+        }
+
+        // Not needed for the service to come up, start it after onCreate
+        governor = new ThrottleGovernor(this, this::onQosChanged);
+        mainHandler.post(() -> {
+            if (running == this) governor.start();
+        });
+
+        createTime = (SystemClock.elapsedRealtimeNanos() - start) / 1e6;
+    }
+
+    /**
+     * Time the last onCreate took in ms, -1 if none yet.
+     */
+    static double getCreateTime() {
+        return createTime;
     }
 
     @Override
     public void onDestroy() {
         super.onDestroy();
+
+        running = null;
+        paused  = false;
+
+        governor.stop();
+        mainHandler.removeCallbacks(notifyTask);
+
+        for (BackgroundTask task : new ArrayList<>(started)) {
+            stopTask(task);
+        }
+
         sleepWell();
+        EnergyMonitor.endSession();
+        TrafficMonitor.endSession();
+        ServiceWatchdog.stop();
+    }
+
+    /**
+     * Start the task unless it runs already.
+     */
+    private void startTask (BackgroundTask task) {
+        if (!started.add(task))
+            return;
+
+        EnergyMonitor.startJob(getJobId(task));
+        task.onStart(this);
+    }
+
+    /**
+     * Stop the task if it got started.
+     */
+    private static void stopTask (BackgroundTask task) {
+        if (!started.remove(task))
+            return;
+
+        task.onStop();
+        EnergyMonitor.endJob(getJobId(task));
+    }
+
+    private static String getJobId (BackgroundTask task) {
+        return "plugin:" + task.getClass().getName();
     }
 
     @Override
     public int onStartCommand (Intent intent, int flags, int startId) {
+        // No intent means the system restarted the service after a kill
+        if (intent == null) {
+            ServiceWatchdog.onStickyRestart();
+        }
+
         return START_STICKY;
     }
 
@@ -64,7 +252,7 @@ public class ForegroundService extends Service {
      * Create notification channel for Android 8.0+
      */
     private void createNotificationChannel() {
-        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+        if (!channelCreated && Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
             CharSequence name = "Background Service";
             String description = "Keeps app running in background";
             int importance = NotificationManager.IMPORTANCE_LOW;
@@ -77,6 +265,7 @@ public class ForegroundService extends Service {
             NotificationManager notificationManager = getSystemService(NotificationManager.class);
             if (notificationManager != null) {
                 notificationManager.createNotificationChannel(channel);
+                channelCreated = true;
             }
         }
     }
@@ -85,6 +274,7 @@ public class ForegroundService extends Service {
     private void keepAwake() {
         JSONObject settings = BackgroundMode.getSettings();
         boolean isSilent = settings.optBoolean("silent", false);
+        boolean useAudio = settings.optBoolean("audio", false) && isAudioDeclared();
 
         if (!isSilent) {
             Notification notification = makeNotification();
@@ -93,37 +283,143 @@ public class ForegroundService extends Service {
             int fgsTypes =
                 ServiceInfo.FOREGROUND_SERVICE_TYPE_DATA_SYNC |
                 ServiceInfo.FOREGROUND_SERVICE_TYPE_REMOTE_MESSAGING;
+
+            // Audio keep-alive plays media
+            int audioType = useAudio ? ServiceInfo.FOREGROUND_SERVICE_TYPE_MEDIA_PLAYBACK : 0;
             
             if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.UPSIDE_DOWN_CAKE) {
                 // Android 14+
-                startForeground(NOTIFICATION_ID, notification, fgsTypes);
+                startForeground(NOTIFICATION_ID, notification, fgsTypes | audioType);
             } else if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.S) {
                 // Android 12–13
-                startForeground(NOTIFICATION_ID, notification, fgsTypes);
+                startForeground(NOTIFICATION_ID, notification, fgsTypes | audioType);
             } else if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
                 // Android 10–11
-                startForeground(NOTIFICATION_ID, notification, ServiceInfo.FOREGROUND_SERVICE_TYPE_DATA_SYNC);
+                startForeground(NOTIFICATION_ID, notification, ServiceInfo.FOREGROUND_SERVICE_TYPE_DATA_SYNC | audioType);
             } else {
                 // Older Android
                 startForeground(NOTIFICATION_ID, notification);
             }
         }
 
-        PowerManager pm = (PowerManager) getSystemService(POWER_SERVICE);
-        if (pm != null) {
-            wakeLock = pm.newWakeLock(PARTIAL_WAKE_LOCK, "backgroundmode:wakelock");
-            wakeLock.acquire();
+        if (useAudio) {
+            audio = new SilentAudio();
+
+            if (audio.start())
+                return;
+
+            // Fall back to the wake lock if the track is not available
+            audio = null;
+        }
+
+        acquireWakeLock();
+    }
+
+    /**
+     * If the app declared the mediaPlayback type for the service, which
+     * the audio keep-alive needs since Android 10. The plugin does not
+     * declare it, see the README.
+     */
+    private boolean isAudioDeclared() {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.Q)
+            return true;
+
+        try {
+            ServiceInfo info = getPackageManager().getServiceInfo(
+                    new ComponentName(this, ForegroundService.class), 0);
+
+            if ((info.getForegroundServiceType()
+                    & ServiceInfo.FOREGROUND_SERVICE_TYPE_MEDIA_PLAYBACK) != 0)
+                return true;
+        } catch (PackageManager.NameNotFoundException e) {
+            LogRing.error("ForegroundService", e);
         }
+
+        LogRing.warn("ForegroundService", "mediaPlayback not declared, using the wake lock");
+        return false;
     }
 
     private void sleepWell() {
         stopForeground(true);
         getNotificationManager().cancel(NOTIFICATION_ID);
+        releaseWakeLock();
 
+        if (audio != null) {
+            audio.stop();
+            audio = null;
+        }
+    }
+
+    @SuppressLint("WakelockTimeout")
+    private void acquireWakeLock() {
+        PowerManager pm = (PowerManager) getSystemService(POWER_SERVICE);
+        if (pm != null && wakeLock == null) {
+            wakeLock = pm.newWakeLock(PARTIAL_WAKE_LOCK, "backgroundmode:wakelock");
+            wakeLock.acquire();
+            EnergyMonitor.onWakeLockAcquired();
+        }
+    }
+
+    private void releaseWakeLock() {
         if (wakeLock != null && wakeLock.isHeld()) {
             wakeLock.release();
-            wakeLock = null;
+            EnergyMonitor.onWakeLockReleased();
+        }
+        wakeLock = null;
+    }
+
+    /**
+     * Pause or resume the running service from a notification action.
+     * While paused the wake lock is released and the tasks are paused.
+     */
+    static void setPaused(boolean value) {
+        ForegroundService service = running;
+
+        if (service == null || paused == value)
+            return;
+
+        paused = value;
+
+        if (service.audio != null && value) {
+            service.audio.pause();
+        } else if (service.audio != null) {
+            service.audio.start();
+        } else if (value) {
+            service.releaseWakeLock();
+        } else {
+            service.acquireWakeLock();
         }
+
+        for (BackgroundTask task : new ArrayList<>(started)) {
+            if (value) {
+                task.onPause();
+            } else {
+                task.onResume();
+            }
+        }
+
+        service.refreshNotification();
+    }
+
+    /**
+     * Hand a custom notification action over to the registered tasks.
+     * Returns true if any task handled it.
+     */
+    static boolean dispatchAction(String id) {
+        boolean handled = false;
+
+        for (BackgroundTask task : tasks) {
+            handled |= task.onAction(id);
+        }
+
+        return handled;
+    }
+
+    /**
+     * If the service got paused through a notification action.
+     */
+    static boolean isPaused() {
+        return paused;
     }
 
     private Notification makeNotification() {
@@ -133,6 +429,16 @@ public class ForegroundService extends Service {
     private Notification makeNotification(JSONObject settings) {
         String title = settings.optString("title", NOTIFICATION_TITLE);
         String text = settings.optString("text", NOTIFICATION_TEXT);
+
+        this.settings = settings;
+
+        for (BackgroundTask task : tasks) {
+            String line = task.getNotificationText();
+
+            if (line != null && !line.isEmpty()) {
+                text = text + "\n" + line;
+            }
+        }
         String icon = settings.optString("icon", NOTIFICATION_ICON);
         boolean bigText = settings.optBoolean("bigText", false);
 
@@ -159,6 +465,7 @@ public class ForegroundService extends Service {
         }
 
         setColor(notification, settings);
+        addActions(notification, settings.optJSONArray("actions"));
 
         if (intent != null && settings.optBoolean("resume", true)) {
             intent.addFlags(Intent.FLAG_ACTIVITY_CLEAR_TOP | Intent.FLAG_ACTIVITY_SINGLE_TOP);
@@ -184,8 +491,87 @@ public class ForegroundService extends Service {
             return;
         }
 
-        Notification notification = makeNotification(settings);
-        getNotificationManager().notify(NOTIFICATION_ID, notification);
+        this.settings = settings;
+        scheduleNotification();
+    }
+
+    /**
+     * Add the configured action buttons. Each one is handled natively by
+     * the action receiver without resuming the web view. Pause and resume
+     * are shown alternately depending on the state of the service.
+     */
+    private void addActions(Notification.Builder notification, JSONArray actions) {
+        if (actions == null)
+            return;
+
+        Context context = getApplicationContext();
+
+        for (int i = 0; i < actions.length(); i++) {
+            JSONObject action = actions.optJSONObject(i);
+            if (action == null) continue;
+
+            String id = action.optString("id");
+
+            if (id.isEmpty()
+                    || (paused && NotificationActionReceiver.PAUSE.equals(id))
+                    || (!paused && NotificationActionReceiver.RESUME.equals(id)))
+                continue;
+
+            Intent intent = new Intent(context, NotificationActionReceiver.class)
+                    .setAction(NotificationActionReceiver.ACTION)
+                    .putExtra(NotificationActionReceiver.EXTRA_ID, id);
+
+            PendingIntent pi = PendingIntent.getBroadcast(context, NOTIFICATION_ID + i + 1,
+                    intent, PendingIntent.FLAG_UPDATE_CURRENT | PendingIntent.FLAG_IMMUTABLE);
+
+            Icon icon = Icon.createWithResource(context,
+                    getIconResId(context, action.optString("icon", null)));
+
+            notification.addAction(new Notification.Action.Builder(
+                    icon, action.optString("title", id), pi).build());
+        }
+    }
+
+    private void refreshNotification() {
+        JSONObject current = settings != null ? settings : BackgroundMode.getSettings();
+
+        mainHandler.removeCallbacks(notifyTask);
+
+        if (current.optBoolean("silent", false))
+            return;
+
+        lastNotificationAt = SystemClock.elapsedRealtime();
+        getNotificationManager().notify(NOTIFICATION_ID, makeNotification(current));
+    }
+
+    /**
+     * Refresh the notification, but not more often than the current
+     * QoS level allows. Updates in between are coalesced.
+     */
+    private void scheduleNotification() {
+        long interval = ThrottleGovernor.getLevel().notificationInterval;
+        long wait     = lastNotificationAt + interval - SystemClock.elapsedRealtime();
+
+        mainHandler.removeCallbacks(notifyTask);
+
+        if (wait > 0) {
+            mainHandler.postDelayed(notifyTask, wait);
+        } else {
+            refreshNotification();
+        }
+    }
+
+    /**
+     * Pass the new level to the tasks and JS.
+     */
+    private void onQosChanged(QosLevel level) {
+        for (BackgroundTask task : tasks) {
+            task.onQosChanged(level);
+        }
+
+        Downloader.onQosChanged(level);
+
+        BackgroundMode.emit("qos", ThrottleGovernor.getState().toString());
     }
 
     /**
@@ -241,7 +627,7 @@ public class ForegroundService extends Service {
             int aRGB = Color.parseColor("#" + hex.replaceAll("#", ""));
             notification.setColor(aRGB);
         } catch (Exception e) {
-            e.printStackTrace();
+            LogRing.error("ForegroundService", e);
         }
     }
 
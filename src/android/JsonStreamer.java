@@ -0,0 +1,343 @@
+package de.einfachhans.BackgroundMode;
+
+import android.content.Context;
+import android.net.Uri;
+import android.util.JsonReader;
+import android.util.JsonToken;
+
+import org.apache.cordova.CallbackContext;
+import org.apache.cordova.PluginResult;
+import org.apache.cordova.PluginResult.Status;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.BufferedInputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Streams large JSON payloads to JS in bounded chunks.
+ *
+ * The payload is read with a pull parser, only the requested fields of the
+ * items are kept and at most `window` chunks are in flight until JS has
+ * acknowledged them. Peak memory therefore depends on the chunk size only,
+ * not on the size of the payload.
+ */
+final class JsonStreamer {
+
+    private static final int DEFAULT_CHUNK_SIZE = 100;
+    private static final int DEFAULT_WINDOW = 2;
+
+    // Each stream parses on its own thread off the main thread, so a stream
+    // waiting for acks does not hold back the others. Idle threads expire.
+    private static final ExecutorService executor = Executors.newCachedThreadPool();
+
+    // Active streams by id
+    private static final Map<String, Stream> streams = new ConcurrentHashMap<>();
+
+    private JsonStreamer() {}
+
+    /**
+     * Start streaming the items of the given source. The listener is
+     * invoked once the stream is done, failed or was cancelled.
+     */
+    static void start (Context context, String id, String source, JSONObject spec,
+                       CallbackContext callback, Runnable listener)
+    {
+        JSONObject opts = spec != null ? spec : new JSONObject();
+        Stream stream   = new Stream(id, callback, Math.max(1, opts.optInt("window", DEFAULT_WINDOW)));
+
+        streams.put(id, stream);
+
+        executor.execute(() -> {
+            ThrottleGovernor.enterWorker();
+
+            try (InputStream in = open(context, source)) {
+                JsonReader reader = new JsonReader(
+                        new InputStreamReader(in, StandardCharsets.UTF_8));
+
+                stream.run(reader,
+                        opts.optString("path", ""),
+                        toFieldTree(opts.optJSONArray("fields")),
+                        Math.max(1, opts.optInt("chunkSize", DEFAULT_CHUNK_SIZE)));
+            } catch (Exception e) {
+                if (!stream.cancelled) {
+                    callback.error(String.format("Cannot stream %s: %s", source, e.getMessage()));
+                }
+            } finally {
+                ThrottleGovernor.leaveWorker();
+                streams.remove(id);
+                listener.run();
+            }
+        });
+    }
+
+    /**
+     * Acknowledge a chunk so the next one can be sent.
+     */
+    static void ack (String id)
+    {
+        Stream stream = streams.get(id);
+
+        if (stream != null) {
+            stream.credits.release();
+        }
+    }
+
+    /**
+     * Stop a stream, the remaining items are skipped.
+     */
+    static void cancel (String id)
+    {
+        Stream stream = streams.get(id);
+
+        if (stream != null) {
+            stream.cancelled = true;
+            stream.credits.release();
+        }
+    }
+
+    /**
+     * Stop all streams, used when the plugin gets destroyed.
+     */
+    static void cancelAll()
+    {
+        for (String id : streams.keySet()) {
+            cancel(id);
+        }
+    }
+
+    private static InputStream open (Context context, String source) throws IOException
+    {
+        Uri uri = Uri.parse(source);
+
+        if ("content".equals(uri.getScheme())) {
+            InputStream in = context.getContentResolver().openInputStream(uri);
+
+            if (in == null)
+                throw new IOException("No content provider");
+
+            return new BufferedInputStream(in);
+        }
+
+        String path = "file".equals(uri.getScheme()) ? uri.getPath() : source;
+
+        return new BufferedInputStream(new FileInputStream(path));
+    }
+
+    /**
+     * Turn a list of dotted field names into a tree of nested keys.
+     * A null value means the whole value is taken.
+     */
+    private static Map<String, Object> toFieldTree (JSONArray fields)
+    {
+        if (fields == null || fields.length() == 0)
+            return null;
+
+        Map<String, Object> tree = new HashMap<>();
+
+        for (int i = 0; i < fields.length(); i++) {
+            Map<String, Object> node = tree;
+            String[] keys = fields.optString(i).split("\\.");
+
+            for (int j = 0; j < keys.length; j++) {
+                if (j == keys.length - 1) {
+                    node.put(keys[j], null);
+                    break;
+                }
+
+                Object child = node.get(keys[j]);
+
+                if (!(child instanceof Map)) {
+                    child = new HashMap<String, Object>();
+                    node.put(keys[j], child);
+                }
+
+                //noinspection unchecked
+                node = (Map<String, Object>) child;
+            }
+        }
+
+        return tree;
+    }
+
+    /**
+     * Read the next value and keep only the keys of the field tree.
+     */
+    private static Object readProjected (JsonReader reader, Map<String, Object> fields)
+            throws IOException, JSONException
+    {
+        if (fields == null || reader.peek() != JsonToken.BEGIN_OBJECT)
+            return readValue(reader);
+
+        JSONObject item = new JSONObject();
+
+        reader.beginObject();
+
+        while (reader.hasNext()) {
+            String key = reader.nextName();
+
+            if (!fields.containsKey(key)) {
+                reader.skipValue();
+                continue;
+            }
+
+            //noinspection unchecked
+            item.put(key, readProjected(reader, (Map<String, Object>) fields.get(key)));
+        }
+
+        reader.endObject();
+
+        return item;
+    }
+
+    /**
+     * Read the next value as a whole.
+     */
+    private static Object readValue (JsonReader reader) throws IOException, JSONException
+    {
+        switch (reader.peek()) {
+            case BEGIN_OBJECT:
+                JSONObject obj = new JSONObject();
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    obj.put(reader.nextName(), readValue(reader));
+                }
+                reader.endObject();
+                return obj;
+            case BEGIN_ARRAY:
+                JSONArray list = new JSONArray();
+                reader.beginArray();
+                while (reader.hasNext()) {
+                    list.put(readValue(reader));
+                }
+                reader.endArray();
+                return list;
+            case STRING:
+                return reader.nextString();
+            case NUMBER:
+                String num = reader.nextString();
+                try {
+                    return Long.parseLong(num);
+                } catch (NumberFormatException e) {
+                    return Double.parseDouble(num);
+                }
+            case BOOLEAN:
+                return reader.nextBoolean();
+            default:
+                reader.nextNull();
+                return JSONObject.NULL;
+        }
+    }
+
+    /**
+     * A single stream with its callback and flow control.
+     */
+    private static final class Stream {
+        final String id;
+        final CallbackContext callback;
+        final Semaphore credits;
+        volatile boolean cancelled = false;
+
+        Stream (String id, CallbackContext callback, int window)
+        {
+            this.id       = id;
+            this.callback = callback;
+            this.credits  = new Semaphore(window);
+        }
+
+        /**
+         * Move to the array at the given path and send its items in chunks.
+         */
+        void run (JsonReader reader, String path, Map<String, Object> fields, int chunkSize)
+                throws IOException, JSONException, InterruptedException
+        {
+            if (!path.isEmpty()) {
+                for (String key : path.split("\\.")) {
+                    if (!seek(reader, key))
+                        throw new IOException("Path not found: " + path);
+                }
+            }
+
+            JSONArray items = new JSONArray();
+            int seq   = 0;
+            int count = 0;
+
+            if (reader.peek() != JsonToken.BEGIN_ARRAY) {
+                items.put(readProjected(reader, fields));
+                count++;
+            } else {
+                reader.beginArray();
+
+                while (reader.hasNext() && !cancelled) {
+                    items.put(readProjected(reader, fields));
+                    count++;
+
+                    if (items.length() < chunkSize)
+                        continue;
+
+                    send(seq++, items, false, count);
+                    items = new JSONArray();
+                }
+            }
+
+            send(seq, cancelled ? new JSONArray() : items, true, count);
+        }
+
+        /**
+         * Advance the reader into the value of the given key.
+         */
+        private boolean seek (JsonReader reader, String key) throws IOException
+        {
+            if (reader.peek() != JsonToken.BEGIN_OBJECT)
+                return false;
+
+            reader.beginObject();
+
+            while (reader.hasNext()) {
+                if (reader.nextName().equals(key))
+                    return true;
+
+                reader.skipValue();
+            }
+
+            return false;
+        }
+
+        /**
+         * Send a chunk once JS has capacity for it.
+         */
+        private void send (int seq, JSONArray items, boolean done, int count)
+                throws JSONException, InterruptedException
+        {
+            if (!done) {
+                credits.acquire();
+            }
+
+            if (cancelled && !done)
+                return;
+
+            JSONObject chunk = new JSONObject();
+            chunk.put("id", id);
+            chunk.put("seq", seq);
+            chunk.put("items", items);
+            chunk.put("done", done);
+            chunk.put("count", count);
+            chunk.put("cancelled", cancelled);
+
+            PluginResult res = new PluginResult(Status.OK, chunk);
+            res.setKeepCallback(!done);
+            callback.sendPluginResult(res);
+        }
+    }
+}
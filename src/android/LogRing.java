@@ -0,0 +1,322 @@
+package de.einfachhans.BackgroundMode;
+
+import android.content.Context;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Binary log ring buffer for failures in background.
+ *
+ * Entries are fixed-size records inside a memory-mapped file, so they
+ * survive the death of the process. A writer reserves a slot through an
+ * atomic sequence and fills it with absolute puts, which don't allocate.
+ * Writes are lock-free: each slot has a version which is odd while a
+ * writer fills it, like a seqlock. Readers copy a record and retry if the
+ * version was odd or changed meanwhile, so they never block a writer. If
+ * the ring wrapped onto a slot which is still being written, the newer
+ * entry is dropped. The sequence is written last and marks the record as
+ * valid after a crash.
+ *
+ * Layout, big endian: a header of MAGIC, VERSION, SLOTS and RECORD_SIZE,
+ * followed by the slots. A slot holds the sequence (long), the time in ms
+ * (long), the level, the tag length, the text length, a pad byte, the tag
+ * (24 bytes) and the text (84 bytes), ASCII with '?' for other chars.
+ */
+final class LogRing {
+
+    static final byte INFO  = 1;
+    static final byte WARN  = 2;
+    static final byte ERROR = 3;
+
+    private static final String FILE_NAME = "backgroundmode.log";
+
+    private static final int MAGIC       = 0x42474C52;
+    private static final int VERSION     = 2;
+    private static final int SLOTS       = 1024;
+    private static final int RECORD_SIZE = 128;
+    private static final int HEADER_SIZE = 16;
+
+    // Offsets inside a record
+    private static final int SEQ      = 0;
+    private static final int TIME     = 8;
+    private static final int LEVEL    = 16;
+    private static final int TAG_LEN  = 17;
+    private static final int TEXT_LEN = 18;
+    private static final int TAG      = 20;
+    private static final int TEXT     = 44;
+
+    private static final int TAG_MAX  = TEXT - TAG;
+    private static final int TEXT_MAX = RECORD_SIZE - TEXT;
+
+    private static final int DEFAULT_LIMIT = 200;
+
+    // Max attempts to read a slot which keeps being written
+    private static final int READ_RETRIES = 100;
+
+    // Last reserved sequence, the first record gets 1
+    private static final AtomicLong sequence = new AtomicLong();
+
+    // Version of each slot, odd while a writer fills it
+    private static final AtomicLongArray versions = new AtomicLongArray(SLOTS);
+
+    // Mapped file or null until initialized
+    private static volatile MappedByteBuffer buffer;
+
+    private static File file;
+
+    private LogRing() {}
+
+    /**
+     * Map the log file on a background thread, keeps the file I/O off
+     * the main thread.
+     */
+    static void initAsync (Context context)
+    {
+        if (buffer != null)
+            return;
+
+        Context app = context.getApplicationContext();
+        new Thread(() -> init(app), "LogRing").start();
+    }
+
+    /**
+     * Map the log file. The entries of earlier runs are kept, unless the
+     * file has another layout. Until then nothing gets logged.
+     */
+    static synchronized void init (Context context)
+    {
+        if (buffer != null)
+            return;
+
+        File path = new File(context.getFilesDir(), FILE_NAME);
+        long size = HEADER_SIZE + (long) SLOTS * RECORD_SIZE;
+
+        try (RandomAccessFile raf = new RandomAccessFile(path, "rw")) {
+            boolean valid = raf.length() == size;
+
+            raf.setLength(size);
+
+            MappedByteBuffer map = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+
+            if (!valid || map.getInt(0) != MAGIC || map.getInt(4) != VERSION) {
+                for (int i = 0; i < size; i += 8) {
+                    map.putLong(i, 0);
+                }
+
+                map.putInt(0, MAGIC);
+                map.putInt(4, VERSION);
+                map.putInt(8, SLOTS);
+                map.putInt(12, RECORD_SIZE);
+            }
+
+            long last = 0;
+
+            for (int slot = 0; slot < SLOTS; slot++) {
+                last = Math.max(last, map.getLong(offset(slot) + SEQ));
+            }
+
+            sequence.set(last);
+            file   = path;
+            buffer = map;
+        } catch (Exception e) {
+            // Logging stays disabled
+        }
+    }
+
+    static void info (String tag, String text)
+    {
+        write(INFO, tag, text, null);
+    }
+
+    static void warn (String tag, String text)
+    {
+        write(WARN, tag, text, null);
+    }
+
+    static void error (String tag, String text)
+    {
+        write(ERROR, tag, text, null);
+    }
+
+    /**
+     * Log the class and message of the exception.
+     */
+    static void error (String tag, Throwable e)
+    {
+        write(ERROR, tag, e.getClass().getName(), e.getMessage());
+    }
+
+    /**
+     * The log file or null if not initialized.
+     */
+    static File getFile()
+    {
+        return buffer != null ? file : null;
+    }
+
+    /**
+     * Decode up to `limit` entries with a sequence greater than `after`,
+     * oldest first.
+     */
+    static JSONArray read (long after, int limit) throws JSONException
+    {
+        MappedByteBuffer map = buffer;
+        JSONArray entries    = new JSONArray();
+
+        if (map == null)
+            return entries;
+
+        List<JSONObject> items = new ArrayList<>();
+        List<Long> seqs        = new ArrayList<>();
+
+        for (int slot = 0; slot < SLOTS; slot++) {
+            JSONObject entry = readSlot(map, slot);
+            long seq         = entry != null ? entry.getLong("seq") : 0;
+
+            if (seq <= after)
+                continue;
+
+            int pos = Collections.binarySearch(seqs, seq);
+            pos = pos < 0 ? -pos - 1 : pos;
+            seqs.add(pos, seq);
+            items.add(pos, entry);
+        }
+
+        int max   = limit > 0 ? limit : DEFAULT_LIMIT;
+        int start = Math.max(0, items.size() - max);
+
+        for (int i = start; i < items.size(); i++) {
+            entries.put(items.get(i));
+        }
+
+        return entries;
+    }
+
+    /**
+     * Copy the record of a slot, retried while a writer changes it.
+     * Returns null for an empty slot or if it could not be read.
+     */
+    private static JSONObject readSlot (MappedByteBuffer map, int slot) throws JSONException
+    {
+        int off = offset(slot);
+
+        for (int i = 0; i < READ_RETRIES; i++) {
+            long version = versions.get(slot);
+
+            if ((version & 1) != 0)
+                continue;
+
+            long seq    = map.getLong(off + SEQ);
+            long time   = map.getLong(off + TIME);
+            byte level  = map.get(off + LEVEL);
+            String tag  = decode(map, off + TAG, map.get(off + TAG_LEN), TAG_MAX);
+            String text = decode(map, off + TEXT, map.get(off + TEXT_LEN), TEXT_MAX);
+
+            // Full fence, the copy above happens before it
+            if (!versions.compareAndSet(slot, version, version))
+                continue;
+
+            if (seq == 0)
+                return null;
+
+            JSONObject entry = new JSONObject();
+            entry.put("seq", seq);
+            entry.put("time", time);
+            entry.put("level", level);
+            entry.put("tag", tag);
+            entry.put("text", text);
+
+            return entry;
+        }
+
+        return null;
+    }
+
+    /**
+     * Reserve a slot and fill it. The text is followed by ": " and the
+     * detail if there is any.
+     */
+    private static void write (byte level, String tag, String text, String detail)
+    {
+        MappedByteBuffer map = buffer;
+
+        if (map == null)
+            return;
+
+        long seq     = sequence.incrementAndGet();
+        int slot     = (int) ((seq - 1) % SLOTS);
+        long version = versions.get(slot);
+
+        // Another writer still fills the slot after the ring wrapped
+        if ((version & 1) != 0 || !versions.compareAndSet(slot, version, version + 1))
+            return;
+
+        fill(map, offset(slot), seq, level, tag, text, detail);
+        versions.set(slot, version + 2);
+    }
+
+    private static void fill (MappedByteBuffer map, int off, long seq, byte level,
+                              String tag, String text, String detail)
+    {
+        map.putLong(off + SEQ, 0);
+        map.putLong(off + TIME, System.currentTimeMillis());
+        map.put(off + LEVEL, level);
+
+        int tagLen  = put(map, off + TAG, 0, TAG_MAX, tag);
+        int textLen = put(map, off + TEXT, 0, TEXT_MAX, text);
+
+        if (detail != null) {
+            textLen = put(map, off + TEXT, textLen, TEXT_MAX, ": ");
+            textLen = put(map, off + TEXT, textLen, TEXT_MAX, detail);
+        }
+
+        map.put(off + TAG_LEN, (byte) tagLen);
+        map.put(off + TEXT_LEN, (byte) textLen);
+        map.putLong(off + SEQ, seq);
+    }
+
+    /**
+     * Copy the chars of the string as ASCII, returns the new length.
+     */
+    private static int put (MappedByteBuffer map, int base, int pos, int max, String str)
+    {
+        if (str == null)
+            return pos;
+
+        for (int i = 0; i < str.length() && pos < max; i++, pos++) {
+            char c = str.charAt(i);
+            map.put(base + pos, (byte) (c < 0x80 ? c : '?'));
+        }
+
+        return pos;
+    }
+
+    private static String decode (MappedByteBuffer map, int base, int len, int max)
+    {
+        byte[] bytes = new byte[Math.max(0, Math.min(len, max))];
+
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = map.get(base + i);
+        }
+
+        return new String(bytes, StandardCharsets.US_ASCII);
+    }
+
+    private static int offset (int slot)
+    {
+        return HEADER_SIZE + slot * RECORD_SIZE;
+    }
+}
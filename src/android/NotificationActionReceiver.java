@@ -0,0 +1,114 @@
+package de.einfachhans.BackgroundMode;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Handles the action buttons of the notification natively.
+ *
+ * Pause, resume and cancel act on the service right away, custom actions
+ * are handed over to the registered background tasks. Every action is
+ * queued as an event for JS which gets delivered once the web view runs in
+ * foreground again, so tapping a button never resumes the web view.
+ * Only the last tap of each action is kept.
+ */
+public class NotificationActionReceiver extends BroadcastReceiver {
+
+    static final String ACTION = "de.einfachhans.BackgroundMode.NOTIFICATION_ACTION";
+    static final String EXTRA_ID = "id";
+
+    // Built-in actions
+    static final String PAUSE  = "pause";
+    static final String RESUME = "resume";
+    static final String CANCEL = "cancel";
+
+    // Max number of queued actions, the oldest get dropped
+    private static final int MAX_PENDING = 20;
+
+    // Actions not yet delivered to JS
+    private static final List<JSONObject> pending = new ArrayList<>();
+
+    @Override
+    public void onReceive (Context context, Intent intent) {
+        String id = intent.getStringExtra(EXTRA_ID);
+
+        if (id == null || !ACTION.equals(intent.getAction()))
+            return;
+
+        switch (id) {
+            case PAUSE:
+                ForegroundService.setPaused(true);
+                break;
+            case RESUME:
+                ForegroundService.setPaused(false);
+                break;
+            case CANCEL:
+                JsonStreamer.cancelAll();
+                Downloader.cancelAll();
+                BackgroundMode.cancel(context);
+                break;
+            default:
+                if (!ForegroundService.dispatchAction(id)) {
+                    LogRing.info("NotificationAction", "No task handled action " + id);
+                }
+                break;
+        }
+
+        queue(id);
+    }
+
+    /**
+     * Hand the queued actions over to JS.
+     */
+    static synchronized void flush() {
+        List<JSONObject> items = new ArrayList<>(pending);
+        pending.clear();
+
+        for (JSONObject item : items) {
+            if (!BackgroundMode.emit("action", item.toString())) {
+                pending.add(item);
+            }
+        }
+    }
+
+    /**
+     * Remove the queued action with the given id and return it, or null.
+     */
+    static synchronized JSONObject take (String id) {
+        for (int i = pending.size() - 1; i >= 0; i--) {
+            if (id.equals(pending.get(i).optString("id")))
+                return pending.remove(i);
+        }
+        return null;
+    }
+
+    private static synchronized void queue (String id) {
+        JSONObject item = new JSONObject();
+
+        try {
+            item.put("id", id);
+            item.put("time", System.currentTimeMillis());
+        } catch (JSONException e) {
+            // Keys are never null
+        }
+
+        for (int i = pending.size() - 1; i >= 0; i--) {
+            if (id.equals(pending.get(i).optString("id"))) {
+                pending.remove(i);
+            }
+        }
+
+        pending.add(item);
+
+        while (pending.size() > MAX_PENDING) {
+            pending.remove(0);
+        }
+    }
+}
@@ -0,0 +1,34 @@
+package de.einfachhans.BackgroundMode;
+
+import android.os.Process;
+
+/**
+ * Quality of service the background work should run with, derived from
+ * the thermal state, the battery and the power save mode.
+ */
+public enum QosLevel {
+
+    FULL     (4, Process.THREAD_PRIORITY_BACKGROUND, 1000, 1000),
+    REDUCED  (2, Process.THREAD_PRIORITY_BACKGROUND + 2, 5000, 5000),
+    LOW      (1, Process.THREAD_PRIORITY_LOWEST, 15000, 30000),
+    CRITICAL (1, Process.THREAD_PRIORITY_LOWEST, 60000, 120000);
+
+    // Number of parallel workers
+    public final int workers;
+
+    // Priority for worker threads, see android.os.Process
+    public final int threadPriority;
+
+    // Interval of periodic ticks in ms
+    public final long tickInterval;
+
+    // Minimum time between two notification updates in ms
+    public final long notificationInterval;
+
+    QosLevel (int workers, int threadPriority, long tickInterval, long notificationInterval) {
+        this.workers              = workers;
+        this.threadPriority       = threadPriority;
+        this.tickInterval         = tickInterval;
+        this.notificationInterval = notificationInterval;
+    }
+}
@@ -0,0 +1,407 @@
+package de.einfachhans.BackgroundMode;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.json.JSONTokener;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Native append-only sink for records captured in background.
+ *
+ * Appended records are buffered in memory and written in large SQLite
+ * transactions, either once the buffer is full or after the tick interval
+ * of the current QosLevel. A failed write keeps the records buffered for the next try,
+ * the oldest get dropped once the buffer is full. Reads return a range of
+ * records of a stream by their id.
+ */
+final class RecordSink extends SQLiteOpenHelper {
+
+    private static final String DB_NAME = "backgroundmode_records.db";
+    private static final int DB_VERSION = 1;
+
+    // Buffered records which trigger a flush right away
+    private static final int FLUSH_SIZE = 1000;
+
+    // Max buffered records, the oldest get dropped
+    private static final int MAX_BUFFER = 50 * FLUSH_SIZE;
+
+    // Delay of the next try after a failed write
+    private static final long RETRY_INTERVAL = 5000;
+
+    private static final int DEFAULT_LIMIT = 500;
+
+    // Append rates of the benchmark in records per second
+    private static final int[] BENCH_RATES = { 1000, 10000, 100000 };
+
+    // The benchmark appends a batch every 100 ms
+    private static final int BENCH_BATCHES_PER_SEC = 10;
+
+    private static RecordSink instance;
+
+    // Writes happen in order on a single thread
+    private final ScheduledExecutorService writer = Executors.newSingleThreadScheduledExecutor();
+
+    // Records waiting to be written
+    private List<Object[]> buffer = new ArrayList<>();
+
+    // If a delayed flush is scheduled
+    private boolean flushScheduled = false;
+
+    // Records dropped since the last write succeeded
+    private int dropped = 0;
+
+    private RecordSink (Context context, String name)
+    {
+        super(context, name, null, DB_VERSION);
+        setWriteAheadLoggingEnabled(true);
+    }
+
+    /**
+     * The sink of the app, created on first use.
+     */
+    static synchronized RecordSink get (Context context)
+    {
+        if (instance == null) {
+            instance = new RecordSink(context.getApplicationContext(), DB_NAME);
+        }
+
+        return instance;
+    }
+
+    @Override
+    public void onCreate (SQLiteDatabase db)
+    {
+        db.execSQL("CREATE TABLE records ("
+                + "id INTEGER PRIMARY KEY AUTOINCREMENT, "
+                + "stream TEXT NOT NULL, "
+                + "time INTEGER NOT NULL, "
+                + "data TEXT NOT NULL)");
+        db.execSQL("CREATE INDEX records_stream ON records (stream, id)");
+    }
+
+    @Override
+    public void onUpgrade (SQLiteDatabase db, int oldVersion, int newVersion)
+    {
+        // First version
+    }
+
+    /**
+     * Buffer a batch of records for the given stream.
+     */
+    synchronized void append (String stream, JSONArray records)
+    {
+        long now = System.currentTimeMillis();
+
+        for (int i = 0; i < records.length(); i++) {
+            Object record = records.opt(i);
+
+            if (record == null)
+                continue;
+
+            String data = record instanceof String
+                    ? JSONObject.quote((String) record)
+                    : record.toString();
+
+            buffer.add(new Object[] { stream, now, data });
+        }
+
+        trim();
+
+        if (buffer.size() >= FLUSH_SIZE) {
+            writer.execute(this::flush);
+        } else if (!flushScheduled) {
+            flushScheduled = true;
+            // Records stay in the buffer for up to one tick of the level
+            writer.schedule(this::flush, ThrottleGovernor.getLevel().tickInterval,
+                    TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Write all buffered records and wait until they are stored.
+     */
+    void sync() throws Exception
+    {
+        writer.submit(() -> {
+            write();
+            return null;
+        }).get();
+    }
+
+    /**
+     * Measure the sink with a separate database which gets deleted
+     * afterwards. Each rate gets appended for the given seconds in batches,
+     * once acked when buffered and once acked when stored. Single inserts
+     * show the cost of writing the records one by one.
+     */
+    static JSONObject benchmark (Context context, int seconds) throws Exception
+    {
+        String name     = DB_NAME.replace(".db", "-bench.db");
+        Context app     = context.getApplicationContext();
+        RecordSink sink = new RecordSink(app, name);
+        JSONArray runs  = new JSONArray();
+        JSONObject result = new JSONObject();
+
+        app.deleteDatabase(name);
+
+        try {
+            for (int rate : BENCH_RATES) {
+                runs.put(sink.measure(rate, seconds, false));
+                runs.put(sink.measure(rate, seconds, true));
+            }
+
+            result.put("runs", runs);
+            result.put("singleInsertsPerSec", sink.measureSingleInserts(1000));
+        } finally {
+            sink.writer.shutdownNow();
+            sink.close();
+            app.deleteDatabase(name);
+        }
+
+        return result;
+    }
+
+    /**
+     * Append at the given rate and report the reached rate and the time
+     * until an append is acked.
+     */
+    private JSONObject measure (int rate, int seconds, boolean durable) throws Exception
+    {
+        int size       = Math.max(1, rate / BENCH_BATCHES_PER_SEC);
+        long period    = 1000000000L / BENCH_BATCHES_PER_SEC;
+        long[] samples = new long[Math.max(1, seconds) * BENCH_BATCHES_PER_SEC];
+        JSONArray batch = new JSONArray();
+
+        for (int i = 0; i < size; i++) {
+            JSONObject record = new JSONObject();
+            record.put("lat", 48.137 + i * 1e-6);
+            record.put("lon", 11.575 - i * 1e-6);
+            record.put("acc", 5);
+            batch.put(record);
+        }
+
+        long start = System.nanoTime();
+
+        for (int i = 0; i < samples.length; i++) {
+            long wait = start + i * period - System.nanoTime();
+
+            if (wait > 0) {
+                Thread.sleep(wait / 1000000, (int) (wait % 1000000));
+            }
+
+            long t = System.nanoTime();
+
+            append("bench", batch);
+
+            if (durable) {
+                sync();
+            }
+
+            samples[i] = System.nanoTime() - t;
+        }
+
+        sync();
+
+        long elapsed = System.nanoTime() - start;
+        long count   = (long) size * samples.length;
+
+        Arrays.sort(samples);
+        getWritableDatabase().delete("records", null, null);
+
+        JSONObject run = new JSONObject();
+        run.put("rate", rate);
+        run.put("durable", durable);
+        run.put("records", count);
+        run.put("recordsPerSec", count * 1e9 / Math.max(1, elapsed));
+        run.put("ackP50Us", samples[samples.length / 2] / 1000.0);
+        run.put("ackP99Us", samples[(int) (samples.length * 0.99)] / 1000.0);
+
+        return run;
+    }
+
+    /**
+     * Records per second if each record gets its own transaction.
+     */
+    private double measureSingleInserts (int count) throws Exception
+    {
+        List<Object[]> items = new ArrayList<>(1);
+        long start = System.nanoTime();
+
+        for (int i = 0; i < count; i++) {
+            items.clear();
+            items.add(new Object[] { "bench", System.currentTimeMillis(), "{\"i\":" + i + "}" });
+            insert(items);
+        }
+
+        long elapsed = System.nanoTime() - start;
+
+        getWritableDatabase().delete("records", null, null);
+
+        return count * 1e9 / Math.max(1, elapsed);
+    }
+
+    /**
+     * Read up to `limit` records of a stream with an id greater than `after`.
+     */
+    JSONObject read (String stream, long after, int limit) throws Exception
+    {
+        sync();
+
+        JSONArray records = new JSONArray();
+        long last         = after;
+
+        String[] args = {
+            stream, String.valueOf(after), String.valueOf(limit > 0 ? limit : DEFAULT_LIMIT)
+        };
+
+        try (Cursor c = getReadableDatabase().rawQuery(
+                "SELECT id, time, data FROM records WHERE stream = ? AND id > ? "
+                        + "ORDER BY id LIMIT ?", args)) {
+            while (c.moveToNext()) {
+                JSONObject item = new JSONObject();
+
+                last = c.getLong(0);
+                item.put("id", last);
+                item.put("time", c.getLong(1));
+                item.put("data", parse(c.getString(2)));
+                records.put(item);
+            }
+        }
+
+        JSONObject result = new JSONObject();
+        result.put("records", records);
+        result.put("next", last);
+
+        return result;
+    }
+
+    /**
+     * Delete the records of a stream up to and including the given id.
+     * Returns the number of deleted records.
+     */
+    int delete (String stream, long upTo) throws Exception
+    {
+        sync();
+
+        return getWritableDatabase().delete("records", "stream = ? AND id <= ?",
+                new String[] { stream, String.valueOf(upTo) });
+    }
+
+    /**
+     * Write the buffered records, failures are logged and retried later.
+     */
+    private void flush()
+    {
+        try {
+            write();
+        } catch (Exception e) {
+            LogRing.error("RecordSink", e);
+        }
+    }
+
+    /**
+     * Write the buffered records in a single transaction. On failure the
+     * records go back to the front of the buffer and a retry is scheduled.
+     */
+    private void write()
+    {
+        List<Object[]> items;
+
+        synchronized (this) {
+            items          = buffer;
+            buffer         = new ArrayList<>();
+            flushScheduled = false;
+        }
+
+        if (items.isEmpty())
+            return;
+
+        try {
+            insert(items);
+        } catch (RuntimeException e) {
+            requeue(items);
+            throw e;
+        }
+
+        synchronized (this) {
+            if (dropped > 0) {
+                LogRing.warn("RecordSink", "dropped " + dropped + " records");
+                dropped = 0;
+            }
+        }
+    }
+
+    private void insert (List<Object[]> items)
+    {
+        SQLiteDatabase db = getWritableDatabase();
+        SQLiteStatement insert = db.compileStatement(
+                "INSERT INTO records (stream, time, data) VALUES (?, ?, ?)");
+
+        db.beginTransaction();
+
+        try {
+            for (Object[] item : items) {
+                insert.bindString(1, (String) item[0]);
+                insert.bindLong(2, (Long) item[1]);
+                insert.bindString(3, (String) item[2]);
+                insert.executeInsert();
+            }
+
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+            insert.close();
+        }
+    }
+
+    /**
+     * Put records of a failed write in front of the newer ones.
+     */
+    private synchronized void requeue (List<Object[]> items)
+    {
+        items.addAll(buffer);
+        buffer = items;
+
+        trim();
+
+        if (!flushScheduled) {
+            flushScheduled = true;
+            writer.schedule(this::flush, RETRY_INTERVAL, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Drop the oldest records beyond the max buffer size.
+     */
+    private void trim()
+    {
+        int excess = buffer.size() - MAX_BUFFER;
+
+        if (excess > 0) {
+            buffer.subList(0, excess).clear();
+            dropped += excess;
+        }
+    }
+
+    private static Object parse (String data)
+    {
+        try {
+            return new JSONTokener(data).nextValue();
+        } catch (JSONException e) {
+            return data;
+        }
+    }
+}
@@ -0,0 +1,471 @@
+package de.einfachhans.BackgroundMode;
+
+import android.app.ActivityManager;
+import android.app.ApplicationExitInfo;
+import android.content.Context;
+import android.os.Build;
+import android.os.Process;
+import android.util.AtomicFile;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Detects when the system or an OEM battery manager kills the service.
+ *
+ * While the foreground service runs, a heartbeat with the pid and the time
+ * is written to a small file. A clean stop removes it. If a heartbeat of
+ * another process is still there on the next start of the service or the
+ * plugin, that process died unexpectedly. Sessions and deaths are counted
+ * separately for before and after the app start settings were opened, so
+ * the effect of the prompt on survival can be compared. The heartbeat
+ * also holds the start time of the process, so a new process which got
+ * the same pid is not mistaken for the old one. Since Android 11 the exit
+ * reason of the dead process tells kills apart from crashes and from exits
+ * the app asked for. Force stops are counted on their own, as many OEM
+ * battery managers force stop apps, which gets recorded as requested by
+ * the user.
+ */
+final class ServiceWatchdog {
+
+    private static final String FILE_NAME = "backgroundmode-watchdog.json";
+
+    // Interval of the heartbeats, also the precision of the kill time
+    private static final long HEARTBEAT_INTERVAL = 60 * 1000;
+
+    // Number of deaths kept in the history
+    private static final int HISTORY_SIZE = 50;
+
+    // Max time the app waits for a synchronous stop
+    private static final long STOP_TIMEOUT = 1000;
+
+    // File access happens in order on a single thread
+    private static final ScheduledExecutorService executor =
+            Executors.newSingleThreadScheduledExecutor();
+
+    private static AtomicFile file;
+
+    private static Context appContext;
+
+    // Persisted state, loaded on first use
+    private static JSONObject state;
+
+    private static ScheduledFuture<?> heartbeat;
+
+    // Death detected by the current process, until a restart claimed it
+    private static JSONObject lastDeath;
+
+    private ServiceWatchdog() {}
+
+    /**
+     * The foreground service got created. Checks for a death of the
+     * previous service, then starts the heartbeats.
+     */
+    static void start (Context context)
+    {
+        init(context);
+
+        executor.execute(() -> {
+            detect("service");
+            beginSession();
+        });
+    }
+
+    /**
+     * The foreground service got destroyed regularly.
+     */
+    static void stop()
+    {
+        executor.execute(ServiceWatchdog::endSession);
+    }
+
+    /**
+     * Like stop, but waits until the heartbeat is removed. Used right
+     * before the app kills its own process.
+     */
+    static void stopNow()
+    {
+        synchronized (ServiceWatchdog.class) {
+            if (file == null)
+                return;
+        }
+
+        try {
+            executor.submit(ServiceWatchdog::endSession)
+                    .get(STOP_TIMEOUT, TimeUnit.MILLISECONDS);
+        } catch (Exception e) {
+            LogRing.error("ServiceWatchdog", e);
+        }
+    }
+
+    /**
+     * The system restarted the sticky service after the process died.
+     */
+    static void onStickyRestart()
+    {
+        executor.execute(() -> {
+            if (lastDeath != null) {
+                put(lastDeath, "restartedBy", "sticky");
+                save();
+            }
+        });
+    }
+
+    /**
+     * The app got launched, checks for a death of the previous service.
+     */
+    static void onLaunch (Context context)
+    {
+        init(context);
+        executor.execute(() -> detect("launch"));
+    }
+
+    /**
+     * The app start settings of the manufacturer got opened.
+     */
+    static void onAppStartOpened (Context context)
+    {
+        init(context);
+
+        executor.execute(() -> {
+            put(state, "appStartOpenedAt", System.currentTimeMillis());
+            save();
+        });
+    }
+
+    /**
+     * Deaths, sessions and survival with and without the app start prompt.
+     */
+    static JSONObject getStats (Context context) throws Exception
+    {
+        init(context);
+
+        return executor.submit(() -> {
+            JSONObject stats = new JSONObject(state.toString());
+
+            stats.remove("heartbeat");
+
+            for (String name : new String[] { "withAppStart", "withoutAppStart" }) {
+                JSONObject group = stats.optJSONObject(name);
+
+                if (group == null || group.optLong("sessions") <= 0)
+                    continue;
+
+                double sessions = group.optLong("sessions");
+
+                // Force stops might be battery managers, they count as deaths
+                put(group, "deathRate",
+                        (group.optLong("deaths") + group.optLong("forceStops")) / sessions);
+                put(group, "killRate", group.optLong("deaths") / sessions);
+            }
+
+            put(stats, "manufacturer", Build.MANUFACTURER);
+            put(stats, "running", state.has("heartbeat"));
+
+            return stats;
+        }).get();
+    }
+
+    private static synchronized void init (Context context)
+    {
+        if (file != null)
+            return;
+
+        AtomicFile atomic = new AtomicFile(new File(context.getFilesDir(), FILE_NAME));
+
+        appContext = context.getApplicationContext();
+        file       = atomic;
+        executor.execute(() -> state = load(atomic));
+    }
+
+    /**
+     * Remove the heartbeat after a regular stop.
+     */
+    private static void endSession()
+    {
+        if (heartbeat != null) {
+            heartbeat.cancel(false);
+            heartbeat = null;
+        }
+
+        JSONObject beat = state.optJSONObject("heartbeat");
+
+        // A heartbeat of a dead process is left for detect
+        if (beat != null && isOwn(beat)) {
+            addUptime(beat, System.currentTimeMillis());
+            state.remove("heartbeat");
+            save();
+        }
+    }
+
+    /**
+     * Record a death if there is a heartbeat of another process.
+     */
+    private static void detect (String restartedBy)
+    {
+        JSONObject beat = state.optJSONObject("heartbeat");
+
+        if (beat == null || isOwn(beat))
+            return;
+
+        long now  = System.currentTimeMillis();
+        long last = beat.optLong("beat");
+        boolean prompted = beat.optBoolean("appStart");
+        ApplicationExitInfo exit = getExitInfo(beat.optInt("pid"));
+
+        // An exit before the session started is of an older process with the same pid
+        if (exit != null && exit.getTimestamp() < beat.optLong("started")) {
+            exit = null;
+        }
+
+        if (exit != null && exit.getTimestamp() >= last) {
+            last = exit.getTimestamp();
+        }
+
+        JSONObject death = new JSONObject();
+        put(death, "killedAt", last);
+        put(death, "detectedAt", now);
+        put(death, "restartLatency", now - last);
+        put(death, "uptime", last - beat.optLong("started"));
+        put(death, "manufacturer", beat.optString("manufacturer"));
+        put(death, "appStart", prompted);
+        put(death, "restartedBy", restartedBy);
+
+        boolean killed    = true;
+        boolean forceStop = false;
+
+        if (exit != null) {
+            killed    = isKill(exit.getReason());
+            forceStop = exit.getReason() == ApplicationExitInfo.REASON_USER_REQUESTED;
+            put(death, "reason", getReasonName(exit.getReason()));
+            put(death, "description", exit.getDescription());
+        }
+
+        put(death, "killed", killed);
+        put(death, "forceStop", forceStop);
+
+        JSONArray deaths = state.optJSONArray("deaths");
+
+        if (deaths == null) {
+            deaths = new JSONArray();
+        }
+
+        deaths.put(death);
+
+        if (deaths.length() > HISTORY_SIZE) {
+            deaths.remove(0);
+        }
+
+        put(state, "deaths", deaths);
+        increment(getGroup(prompted), killed ? "deaths" : forceStop ? "forceStops" : "exits");
+        addUptime(beat, last);
+
+        state.remove("heartbeat");
+        lastDeath = death;
+        save();
+
+        if (!killed && !forceStop)
+            return;
+
+        LogRing.warn("ServiceWatchdog", killed ? "service was killed" : "app was force stopped");
+        BackgroundMode.emit("watchdog", death.toString());
+    }
+
+    /**
+     * Why the process of the given pid ended, null before Android 11 or
+     * if the system does not know it anymore.
+     */
+    private static ApplicationExitInfo getExitInfo (int pid)
+    {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.R || pid <= 0)
+            return null;
+
+        ActivityManager am = (ActivityManager) appContext.getSystemService(Context.ACTIVITY_SERVICE);
+
+        if (am == null)
+            return null;
+
+        try {
+            List<ApplicationExitInfo> exits =
+                    am.getHistoricalProcessExitReasons(appContext.getPackageName(), pid, 1);
+
+            return exits.isEmpty() ? null : exits.get(0);
+        } catch (Exception e) {
+            LogRing.error("ServiceWatchdog", e);
+            return null;
+        }
+    }
+
+    /**
+     * If the heartbeat was written by the current process. The pid alone
+     * could have been reused by a new process.
+     */
+    private static boolean isOwn (JSONObject beat)
+    {
+        return beat.optInt("pid") == Process.myPid()
+                && beat.optLong("processStart") == getProcessStart();
+    }
+
+    /**
+     * Start of the current process in ms since boot, 0 before Android 7.
+     */
+    private static long getProcessStart()
+    {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.N)
+            return 0;
+
+        return Process.getStartElapsedRealtime();
+    }
+
+    /**
+     * If the system or a battery manager ended the process. Crashes and
+     * exits the user or the app asked for are no kills, force stops are
+     * counted separately.
+     */
+    private static boolean isKill (int reason)
+    {
+        switch (reason) {
+            case ApplicationExitInfo.REASON_LOW_MEMORY:
+            case ApplicationExitInfo.REASON_SIGNALED:
+            case ApplicationExitInfo.REASON_EXCESSIVE_RESOURCE_USAGE:
+            case ApplicationExitInfo.REASON_OTHER:
+            case ApplicationExitInfo.REASON_UNKNOWN:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    private static String getReasonName (int reason)
+    {
+        switch (reason) {
+            case ApplicationExitInfo.REASON_EXIT_SELF:                return "exit-self";
+            case ApplicationExitInfo.REASON_SIGNALED:                 return "signaled";
+            case ApplicationExitInfo.REASON_LOW_MEMORY:               return "low-memory";
+            case ApplicationExitInfo.REASON_CRASH:                    return "crash";
+            case ApplicationExitInfo.REASON_CRASH_NATIVE:             return "crash-native";
+            case ApplicationExitInfo.REASON_ANR:                      return "anr";
+            case ApplicationExitInfo.REASON_INITIALIZATION_FAILURE:   return "initialization-failure";
+            case ApplicationExitInfo.REASON_PERMISSION_CHANGE:        return "permission-change";
+            case ApplicationExitInfo.REASON_EXCESSIVE_RESOURCE_USAGE: return "excessive-resource-usage";
+            case ApplicationExitInfo.REASON_USER_REQUESTED:           return "user-requested";
+            case ApplicationExitInfo.REASON_USER_STOPPED:             return "user-stopped";
+            case ApplicationExitInfo.REASON_DEPENDENCY_DIED:          return "dependency-died";
+            case ApplicationExitInfo.REASON_OTHER:                    return "other";
+            default:                                                  return "unknown";
+        }
+    }
+
+    /**
+     * Write the first heartbeat and schedule the next ones.
+     */
+    private static void beginSession()
+    {
+        long now = System.currentTimeMillis();
+        boolean prompted = state.optLong("appStartOpenedAt") > 0;
+
+        JSONObject beat = new JSONObject();
+        put(beat, "pid", Process.myPid());
+        put(beat, "processStart", getProcessStart());
+        put(beat, "started", now);
+        put(beat, "beat", now);
+        put(beat, "manufacturer", Build.MANUFACTURER);
+        put(beat, "appStart", prompted);
+
+        put(state, "heartbeat", beat);
+        increment(getGroup(prompted), "sessions");
+        save();
+
+        if (heartbeat != null) {
+            heartbeat.cancel(false);
+        }
+
+        heartbeat = executor.scheduleWithFixedDelay(() -> {
+            JSONObject current = state.optJSONObject("heartbeat");
+
+            if (current != null) {
+                put(current, "beat", System.currentTimeMillis());
+                save();
+            }
+        }, HEARTBEAT_INTERVAL, HEARTBEAT_INTERVAL, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Counters of the sessions before or after the app start prompt.
+     */
+    private static JSONObject getGroup (boolean prompted)
+    {
+        String name = prompted ? "withAppStart" : "withoutAppStart";
+        JSONObject group = state.optJSONObject(name);
+
+        if (group == null) {
+            group = new JSONObject();
+            put(group, "sessions", 0);
+            put(group, "deaths", 0);
+            put(group, "forceStops", 0);
+            put(group, "exits", 0);
+            put(group, "uptime", 0);
+            put(state, name, group);
+        }
+
+        return group;
+    }
+
+    private static void addUptime (JSONObject beat, long end)
+    {
+        JSONObject group = getGroup(beat.optBoolean("appStart"));
+        long uptime      = Math.max(0, end - beat.optLong("started"));
+
+        put(group, "uptime", group.optLong("uptime") + uptime);
+    }
+
+    private static void increment (JSONObject group, String key)
+    {
+        put(group, key, group.optLong(key) + 1);
+    }
+
+    private static JSONObject load (AtomicFile atomic)
+    {
+        try {
+            return new JSONObject(new String(atomic.readFully(), StandardCharsets.UTF_8));
+        } catch (Exception e) {
+            // First run or unreadable
+            return new JSONObject();
+        }
+    }
+
+    private static void save()
+    {
+        FileOutputStream out = null;
+
+        try {
+            out = file.startWrite();
+            out.write(state.toString().getBytes(StandardCharsets.UTF_8));
+            file.finishWrite(out);
+        } catch (Exception e) {
+            if (out != null) {
+                file.failWrite(out);
+            }
+            LogRing.error("ServiceWatchdog", e);
+        }
+    }
+
+    private static void put (JSONObject obj, String key, Object value)
+    {
+        try {
+            obj.put(key, value);
+        } catch (JSONException e) {
+            // Keys are never null
+        }
+    }
+}
@@ -0,0 +1,113 @@
+package de.einfachhans.BackgroundMode;
+
+import android.media.AudioAttributes;
+import android.media.AudioFormat;
+import android.media.AudioManager;
+import android.media.AudioTrack;
+import android.os.Build;
+
+/**
+ * Keeps the app alive by looping a silent PCM buffer, the Android
+ * counterpart of the appbeep.wav approach on iOS.
+ *
+ * The buffer is allocated once and played as a static track with
+ * infinite loop points, so no data is written while playing. The track
+ * runs at a low sample rate in power saving performance mode. It plays
+ * as sonification without audio focus, so music of other apps is neither
+ * paused nor ducked.
+ */
+final class SilentAudio {
+
+    private static final int SAMPLE_RATE = 8000;
+
+    // Length of the looped buffer in frames, half a second
+    private static final int FRAMES = SAMPLE_RATE / 2;
+
+    private AudioTrack track;
+
+    /**
+     * Start looping the silent buffer. Returns false if the track could
+     * not be initialized.
+     */
+    boolean start()
+    {
+        if (track != null) {
+            track.play();
+            return true;
+        }
+
+        short[] silence = new short[FRAMES];
+        AudioTrack audio;
+
+        try {
+            audio = createTrack(silence.length * 2);
+        } catch (Exception e) {
+            return false;
+        }
+
+        if (audio.getState() == AudioTrack.STATE_UNINITIALIZED) {
+            audio.release();
+            return false;
+        }
+
+        audio.write(silence, 0, silence.length);
+        audio.setLoopPoints(0, FRAMES, -1);
+        audio.play();
+
+        track = audio;
+        return true;
+    }
+
+    /**
+     * Pause the track, keeps the buffer for a later start.
+     */
+    void pause()
+    {
+        if (track != null) {
+            track.pause();
+        }
+    }
+
+    /**
+     * Stop the track and free its buffer.
+     */
+    void stop()
+    {
+        if (track == null)
+            return;
+
+        try {
+            track.stop();
+        } catch (IllegalStateException e) {
+            // Not playing
+        }
+
+        track.release();
+        track = null;
+    }
+
+    @SuppressWarnings("deprecation")
+    private static AudioTrack createTrack (int bytes)
+    {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.O) {
+            return new AudioTrack(AudioManager.STREAM_SYSTEM, SAMPLE_RATE,
+                    AudioFormat.CHANNEL_OUT_MONO, AudioFormat.ENCODING_PCM_16BIT,
+                    bytes, AudioTrack.MODE_STATIC);
+        }
+
+        return new AudioTrack.Builder()
+                .setAudioAttributes(new AudioAttributes.Builder()
+                        .setUsage(AudioAttributes.USAGE_ASSISTANCE_SONIFICATION)
+                        .setContentType(AudioAttributes.CONTENT_TYPE_SONIFICATION)
+                        .build())
+                .setAudioFormat(new AudioFormat.Builder()
+                        .setSampleRate(SAMPLE_RATE)
+                        .setChannelMask(AudioFormat.CHANNEL_OUT_MONO)
+                        .setEncoding(AudioFormat.ENCODING_PCM_16BIT)
+                        .build())
+                .setTransferMode(AudioTrack.MODE_STATIC)
+                .setBufferSizeInBytes(bytes)
+                .setPerformanceMode(AudioTrack.PERFORMANCE_MODE_POWER_SAVING)
+                .build();
+    }
+}
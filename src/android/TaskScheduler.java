@@ -0,0 +1,525 @@
+package de.einfachhans.BackgroundMode;
+
+import android.app.job.JobInfo;
+import android.app.job.JobParameters;
+import android.app.job.JobScheduler;
+import android.app.job.JobService;
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.Build;
+import android.os.PersistableBundle;
+import android.os.SystemClock;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static android.content.Context.JOB_SCHEDULER_SERVICE;
+import static android.content.Context.MODE_PRIVATE;
+
+/**
+ * Tiered execution of background work.
+ *
+ * Immediate tasks keep the foreground service alive while the app is in
+ * background. Deferrable tasks are batched by their constraints into a
+ * single JobScheduler job per constraint set, so the system decides when
+ * to run them instead of holding a wake lock until they are due.
+ *
+ * The batches, due times and undelivered tasks are persisted, so a job
+ * which starts in a fresh process still knows its tasks. If Android 12+
+ * does not allow to start the foreground service from background, an
+ * expedited job keeps the process alive while there is immediate work.
+ */
+final class TaskScheduler {
+
+    // Key of the task ids inside the job extras
+    static final String EXTRA_TASKS = "backgroundmode:tasks";
+
+    // First job id used by the plugin, constraint bits are added on top
+    private static final int JOB_ID_BASE = 0x4247D00;
+
+    // Constraint bits of a deferrable task
+    private static final int CHARGING  = 1;
+    private static final int UNMETERED = 1 << 1;
+    private static final int IDLE      = 1 << 2;
+
+    // Id of the expedited job which stands in for the foreground service
+    private static final int EXPEDITED_JOB_ID = JOB_ID_BASE + (1 << 3);
+
+    private static final String PREFS_NAME = "backgroundmode_tasks";
+    private static final String KEY_BATCHES = "batches";
+    private static final String KEY_UNDELIVERED = "undelivered";
+
+    // Ids of the registered immediate tasks
+    private static final Set<String> immediate = new LinkedHashSet<>();
+
+    // Ids of the deferrable tasks grouped by their constraint bits
+    private static final Map<Integer, Set<String>> batches = new HashMap<>();
+
+    // Elapsed realtime from which on a deferrable task may run
+    private static final Map<String, Long> dueAt = new HashMap<>();
+
+    // Jobs currently executed by the JobScheduler
+    private static final Map<Integer, RunningJob> running = new HashMap<>();
+
+    // Task ids which could not be delivered to the web view yet
+    private static final Set<String> undelivered = new LinkedHashSet<>();
+
+    // Running expedited job or null
+    private static RunningJob expedited;
+
+    // If the persisted state got loaded
+    private static boolean loaded = false;
+
+    private TaskScheduler() {}
+
+    /**
+     * Register a task. Returns true if the task is immediate.
+     */
+    static synchronized boolean add (Context context, String id, JSONObject spec)
+    {
+        load(context);
+
+        if (spec == null || !spec.optBoolean("deferrable", false)) {
+            immediate.add(id);
+            EnergyMonitor.startJob(id);
+            return true;
+        }
+
+        int bits = 0;
+
+        if (spec.optBoolean("charging", false))  bits |= CHARGING;
+        if (spec.optBoolean("unmetered", false)) bits |= UNMETERED;
+        if (spec.optBoolean("idle", false))      bits |= IDLE;
+
+        Set<String> batch = batches.get(bits);
+
+        if (batch == null) {
+            batch = new LinkedHashSet<>();
+            batches.put(bits, batch);
+        }
+
+        batch.add(id);
+        dueAt.put(id, SystemClock.elapsedRealtime() + Math.max(0, spec.optLong("delay", 0)));
+
+        if (!running.containsKey(JOB_ID_BASE + bits)) {
+            schedule(context, bits, batch);
+        }
+
+        save(context);
+        return false;
+    }
+
+    /**
+     * Mark a task as done. Returns true if it was an immediate task.
+     */
+    static synchronized boolean finish (Context context, String id)
+    {
+        load(context);
+
+        undelivered.remove(id);
+        dueAt.remove(id);
+        EnergyMonitor.endJob(id);
+
+        if (immediate.remove(id)) {
+            if (immediate.isEmpty()) {
+                finishExpedited();
+            }
+            return true;
+        }
+
+        try {
+            return finishDeferred(context, id);
+        } finally {
+            save(context);
+        }
+    }
+
+    /**
+     * Remove a deferrable task from its running job or its batch.
+     */
+    private static boolean finishDeferred (Context context, String id)
+    {
+        for (Map.Entry<Integer, RunningJob> entry : running.entrySet()) {
+            RunningJob job = entry.getValue();
+
+            if (job.pending.remove(id) && job.pending.isEmpty()) {
+                running.remove(entry.getKey());
+                job.service.jobFinished(job.params, false);
+                rescheduleRemaining(context, entry.getKey() - JOB_ID_BASE);
+                return false;
+            }
+        }
+
+        for (Map.Entry<Integer, Set<String>> entry : batches.entrySet()) {
+            Set<String> batch = entry.getValue();
+            int bits          = entry.getKey();
+
+            if (!batch.remove(id) || running.containsKey(JOB_ID_BASE + bits))
+                continue;
+
+            if (batch.isEmpty()) {
+                batches.remove(bits);
+                getScheduler(context).cancel(JOB_ID_BASE + bits);
+            } else {
+                schedule(context, bits, batch);
+            }
+            break;
+        }
+
+        return false;
+    }
+
+    /**
+     * If there is any immediate work which requires the foreground service.
+     */
+    static synchronized boolean hasImmediateWork()
+    {
+        return !immediate.isEmpty();
+    }
+
+    /**
+     * Drop the immediate and undelivered tasks of JS, used once the web
+     * view reloads and the ids are not known anymore.
+     */
+    static synchronized void reset (Context context)
+    {
+        load(context);
+
+        for (String id : immediate) {
+            EnergyMonitor.endJob(id);
+        }
+
+        immediate.clear();
+        undelivered.clear();
+        finishExpedited();
+        save(context);
+    }
+
+    /**
+     * The foreground service may not be started from background, keep
+     * the process alive through an expedited job instead. Returns false
+     * if the job could not be scheduled either.
+     */
+    static synchronized boolean runExpedited (Context context)
+    {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.S)
+            return false;
+
+        if (expedited != null)
+            return true;
+
+        ComponentName component = new ComponentName(context, BackgroundJobService.class);
+        JobInfo job = new JobInfo.Builder(EXPEDITED_JOB_ID, component)
+                .setExpedited(true)
+                .build();
+
+        return getScheduler(context).schedule(job) == JobScheduler.RESULT_SUCCESS;
+    }
+
+    /**
+     * Called by the job service once the constraints of a batch are met.
+     * Returns true if the job keeps running until the tasks are finished.
+     */
+    static synchronized boolean onJobStarted (JobService service, JobParameters params)
+    {
+        load(service);
+
+        if (params.getJobId() == EXPEDITED_JOB_ID) {
+            if (immediate.isEmpty())
+                return false;
+
+            expedited = new RunningJob(service, params, immediate);
+            return true;
+        }
+
+        String[] ids = params.getExtras().getStringArray(EXTRA_TASKS);
+        int bits     = params.getJobId() - JOB_ID_BASE;
+        Set<String> batch = batches.remove(bits);
+
+        // A fresh process only knows the tasks the job was scheduled with
+        if ((batch == null || batch.isEmpty()) && ids != null) {
+            batch = new LinkedHashSet<>(Arrays.asList(ids));
+        }
+
+        if (batch == null || batch.isEmpty())
+            return false;
+
+        // Tasks which are not due yet stay for the next run of the batch
+        Set<String> due = new LinkedHashSet<>();
+        Set<String> later = new LinkedHashSet<>();
+        long now = SystemClock.elapsedRealtime();
+
+        for (String id : batch) {
+            Long time = dueAt.get(id);
+            (time == null || time <= now ? due : later).add(id);
+        }
+
+        if (!later.isEmpty()) {
+            batches.put(bits, later);
+        }
+
+        if (due.isEmpty()) {
+            schedule(service, bits, later);
+            save(service);
+            return false;
+        }
+
+        batch = due;
+
+        for (String id : batch) {
+            dueAt.remove(id);
+        }
+
+        RunningJob job = new RunningJob(service, params, batch);
+        boolean delivered = true;
+
+        for (String id : batch) {
+            delivered &= BackgroundMode.emit("task", JSONObject.quote(id));
+        }
+
+        if (!delivered) {
+            // No web view to run the tasks, hand them over on next start
+            undelivered.addAll(batch);
+            rescheduleRemaining(service, bits);
+            save(service);
+            return false;
+        }
+
+        for (String id : batch) {
+            EnergyMonitor.startJob(id);
+        }
+
+        running.put(params.getJobId(), job);
+        save(service);
+        return true;
+    }
+
+    /**
+     * Called by the job service if the system stops a job before all of
+     * its tasks are finished. The remaining tasks get rescheduled.
+     */
+    static synchronized void onJobStopped (JobParameters params)
+    {
+        if (params.getJobId() == EXPEDITED_JOB_ID) {
+            expedited = null;
+            return;
+        }
+
+        RunningJob job = running.remove(params.getJobId());
+
+        if (job == null)
+            return;
+
+        int bits = params.getJobId() - JOB_ID_BASE;
+        Set<String> batch = batches.get(bits);
+
+        if (batch == null) {
+            batches.put(bits, job.pending);
+        } else {
+            batch.addAll(job.pending);
+        }
+
+        save(job.service);
+    }
+
+    /**
+     * Deliver the tasks which became due while there was no web view.
+     */
+    static synchronized void flushUndelivered (Context context)
+    {
+        load(context);
+
+        if (undelivered.isEmpty())
+            return;
+
+        List<String> ids = new ArrayList<>(undelivered);
+        undelivered.clear();
+
+        for (String id : ids) {
+            if (!BackgroundMode.emit("task", JSONObject.quote(id))) {
+                undelivered.add(id);
+            }
+        }
+
+        save(context);
+    }
+
+    /**
+     * The last immediate task is done, release the expedited job.
+     */
+    private static void finishExpedited()
+    {
+        if (expedited == null)
+            return;
+
+        RunningJob job = expedited;
+
+        expedited = null;
+        job.service.jobFinished(job.params, false);
+    }
+
+    /**
+     * Restore the batches and undelivered tasks of a previous process.
+     * Due times are stored as wall clock time, so they survive a reboot.
+     */
+    private static void load (Context context)
+    {
+        if (loaded)
+            return;
+
+        loaded = true;
+
+        SharedPreferences prefs = context.getSharedPreferences(PREFS_NAME, MODE_PRIVATE);
+        long offset = SystemClock.elapsedRealtime() - System.currentTimeMillis();
+
+        try {
+            JSONArray items = new JSONArray(prefs.getString(KEY_BATCHES, "[]"));
+
+            for (int i = 0; i < items.length(); i++) {
+                JSONObject item = items.getJSONObject(i);
+                String id       = item.getString("id");
+                int bits        = item.getInt("bits");
+                Set<String> batch = batches.get(bits);
+
+                if (batch == null) {
+                    batch = new LinkedHashSet<>();
+                    batches.put(bits, batch);
+                }
+
+                batch.add(id);
+
+                if (item.has("due") && !dueAt.containsKey(id)) {
+                    dueAt.put(id, item.getLong("due") + offset);
+                }
+            }
+
+            JSONArray queued = new JSONArray(prefs.getString(KEY_UNDELIVERED, "[]"));
+
+            for (int i = 0; i < queued.length(); i++) {
+                undelivered.add(queued.getString(i));
+            }
+        } catch (JSONException e) {
+            LogRing.error("TaskScheduler", e);
+        }
+    }
+
+    /**
+     * Persist the deferrable tasks, including those of running jobs.
+     */
+    private static void save (Context context)
+    {
+        JSONArray items = new JSONArray();
+        long offset     = System.currentTimeMillis() - SystemClock.elapsedRealtime();
+
+        for (Map.Entry<Integer, Set<String>> entry : batches.entrySet()) {
+            addItems(items, entry.getKey(), entry.getValue(), offset);
+        }
+
+        for (Map.Entry<Integer, RunningJob> entry : running.entrySet()) {
+            addItems(items, entry.getKey() - JOB_ID_BASE, entry.getValue().pending, offset);
+        }
+
+        context.getSharedPreferences(PREFS_NAME, MODE_PRIVATE).edit()
+                .putString(KEY_BATCHES, items.toString())
+                .putString(KEY_UNDELIVERED, new JSONArray(undelivered).toString())
+                .apply();
+    }
+
+    private static void addItems (JSONArray items, int bits, Set<String> ids, long offset)
+    {
+        for (String id : ids) {
+            JSONObject item = new JSONObject();
+            Long due        = dueAt.get(id);
+
+            try {
+                item.put("id", id);
+                item.put("bits", bits);
+
+                if (due != null) {
+                    item.put("due", due + offset);
+                }
+            } catch (JSONException e) {
+                // Keys are never null
+            }
+
+            items.put(item);
+        }
+    }
+
+    /**
+     * Schedule the tasks which were added while their batch was running.
+     */
+    private static void rescheduleRemaining (Context context, int bits)
+    {
+        Set<String> batch = batches.get(bits);
+
+        if (batch != null && !batch.isEmpty()) {
+            schedule(context, bits, batch);
+        }
+    }
+
+    /**
+     * Schedule (or replace) the job of the given constraint set. The job
+     * runs no earlier than the earliest due time of its tasks, which also
+     * serves as constraint for batches without any other.
+     */
+    private static void schedule (Context context, int bits, Set<String> batch)
+    {
+        long due = Long.MAX_VALUE;
+
+        for (String id : batch) {
+            Long time = dueAt.get(id);
+            due = Math.min(due, time != null ? time : 0);
+        }
+
+        long delay = Math.max(1, due - SystemClock.elapsedRealtime());
+
+        PersistableBundle extras = new PersistableBundle();
+        extras.putStringArray(EXTRA_TASKS, batch.toArray(new String[0]));
+
+        ComponentName component = new ComponentName(context, BackgroundJobService.class);
+        JobInfo.Builder builder = new JobInfo.Builder(JOB_ID_BASE + bits, component)
+                .setExtras(extras)
+                .setRequiresCharging((bits & CHARGING) != 0)
+                .setRequiresDeviceIdle((bits & IDLE) != 0)
+                .setRequiredNetworkType((bits & UNMETERED) != 0
+                        ? JobInfo.NETWORK_TYPE_UNMETERED
+                        : JobInfo.NETWORK_TYPE_NONE);
+
+        builder.setMinimumLatency(delay);
+
+        getScheduler(context).schedule(builder.build());
+    }
+
+    private static JobScheduler getScheduler (Context context)
+    {
+        return (JobScheduler) context.getSystemService(JOB_SCHEDULER_SERVICE);
+    }
+
+    /**
+     * A job handed out by the JobScheduler and its unfinished tasks.
+     */
+    private static final class RunningJob {
+        final JobService service;
+        final JobParameters params;
+        final Set<String> pending;
+
+        RunningJob (JobService service, JobParameters params, Set<String> ids)
+        {
+            this.service = service;
+            this.params  = params;
+            this.pending = new HashSet<>(ids);
+        }
+    }
+}
@@ -0,0 +1,249 @@
+package de.einfachhans.BackgroundMode;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.os.BatteryManager;
+import android.os.Build;
+import android.os.PowerManager;
+import android.os.Process;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import static android.content.Context.POWER_SERVICE;
+
+/**
+ * Maps the thermal status, the battery state and the power save mode to a
+ * quality of service level for the background work.
+ *
+ * The governor runs while the foreground service runs. Each change of the
+ * level is passed to the listener, so the work degrades gracefully before
+ * the system starts to kill the service.
+ */
+final class ThrottleGovernor {
+
+    /**
+     * Receives the level changes on the main thread.
+     */
+    interface Listener {
+        void onLevelChanged (QosLevel level);
+    }
+
+    // Level used while the governor is not running
+    private static volatile QosLevel current = QosLevel.FULL;
+
+    // Last known inputs, exposed to JS
+    private static int thermal = 0;
+    private static int battery = 100;
+    private static boolean charging = false;
+    private static boolean powerSave = false;
+
+    // Threads of running work which follow the thread priority
+    private static final Set<Integer> workerThreads = new HashSet<>();
+
+    private final Context context;
+    private final Listener listener;
+
+    private PowerManager.OnThermalStatusChangedListener thermalListener;
+
+    private final BroadcastReceiver receiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive (Context context, Intent intent) {
+            if (Intent.ACTION_BATTERY_CHANGED.equals(intent.getAction())) {
+                readBattery(intent);
+            }
+            update();
+        }
+    };
+
+    ThrottleGovernor (Context context, Listener listener)
+    {
+        this.context  = context;
+        this.listener = listener;
+    }
+
+    /**
+     * The level the background work should currently run with.
+     */
+    static QosLevel getLevel()
+    {
+        return current;
+    }
+
+    /**
+     * Let the calling thread follow the thread priority of the level, also
+     * when it changes while the thread runs.
+     */
+    static void enterWorker()
+    {
+        synchronized (workerThreads) {
+            workerThreads.add(Process.myTid());
+        }
+
+        Process.setThreadPriority(current.threadPriority);
+    }
+
+    /**
+     * The calling thread is done with its work.
+     */
+    static void leaveWorker()
+    {
+        synchronized (workerThreads) {
+            workerThreads.remove(Process.myTid());
+        }
+    }
+
+    /**
+     * The level and the inputs it was derived from.
+     */
+    static synchronized JSONObject getState()
+    {
+        QosLevel level   = current;
+        JSONObject state = new JSONObject();
+
+        try {
+            state.put("level", level.name().toLowerCase());
+            state.put("workers", level.workers);
+            state.put("threadPriority", level.threadPriority);
+            state.put("tickInterval", level.tickInterval);
+            state.put("notificationInterval", level.notificationInterval);
+            state.put("thermal", thermal);
+            state.put("battery", battery);
+            state.put("charging", charging);
+            state.put("powerSave", powerSave);
+        } catch (JSONException e) {
+            // Keys are never null
+        }
+
+        return state;
+    }
+
+    /**
+     * Start listening to the power related state.
+     */
+    void start()
+    {
+        IntentFilter filter = new IntentFilter();
+        filter.addAction(Intent.ACTION_BATTERY_CHANGED);
+        filter.addAction(PowerManager.ACTION_POWER_SAVE_MODE_CHANGED);
+
+        Intent sticky = context.registerReceiver(receiver, filter);
+
+        if (sticky != null) {
+            readBattery(sticky);
+        }
+
+        PowerManager pm = (PowerManager) context.getSystemService(POWER_SERVICE);
+
+        if (pm != null && Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+            thermalListener = status -> update();
+            pm.addThermalStatusListener(thermalListener);
+        }
+
+        update();
+    }
+
+    /**
+     * Stop listening and fall back to the full level, which gets reported
+     * like any other change.
+     */
+    void stop()
+    {
+        try {
+            context.unregisterReceiver(receiver);
+        } catch (Exception e) {
+            // Not registered
+        }
+
+        PowerManager pm = (PowerManager) context.getSystemService(POWER_SERVICE);
+
+        if (pm != null && thermalListener != null && Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+            pm.removeThermalStatusListener(thermalListener);
+            thermalListener = null;
+        }
+
+        publish(QosLevel.FULL);
+    }
+
+    private static synchronized void readBattery (Intent intent)
+    {
+        int level  = intent.getIntExtra(BatteryManager.EXTRA_LEVEL, -1);
+        int scale  = intent.getIntExtra(BatteryManager.EXTRA_SCALE, 100);
+        int status = intent.getIntExtra(BatteryManager.EXTRA_STATUS, -1);
+
+        if (level >= 0 && scale > 0) {
+            battery = level * 100 / scale;
+        }
+
+        charging = status == BatteryManager.BATTERY_STATUS_CHARGING
+                || status == BatteryManager.BATTERY_STATUS_FULL;
+    }
+
+    /**
+     * Derive the level from the current inputs and report a change.
+     */
+    private void update()
+    {
+        PowerManager pm = (PowerManager) context.getSystemService(POWER_SERVICE);
+        QosLevel level;
+
+        synchronized (ThrottleGovernor.class) {
+            if (pm != null) {
+                powerSave = pm.isPowerSaveMode();
+
+                if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+                    thermal = pm.getCurrentThermalStatus();
+                }
+            }
+
+            boolean onBattery = !charging;
+
+            if (thermal >= PowerManager.THERMAL_STATUS_SEVERE
+                    || (onBattery && battery <= 5)) {
+                level = QosLevel.CRITICAL;
+            } else if (thermal >= PowerManager.THERMAL_STATUS_MODERATE || powerSave
+                    || (onBattery && battery <= 15)) {
+                level = QosLevel.LOW;
+            } else if (thermal >= PowerManager.THERMAL_STATUS_LIGHT
+                    || (onBattery && battery <= 30)) {
+                level = QosLevel.REDUCED;
+            } else {
+                level = QosLevel.FULL;
+            }
+
+        }
+
+        publish(level);
+    }
+
+    /**
+     * Take over the level, apply its priority to the running workers and
+     * report it if it changed.
+     */
+    private void publish (QosLevel level)
+    {
+        synchronized (ThrottleGovernor.class) {
+            if (level == current)
+                return;
+
+            current = level;
+        }
+
+        synchronized (workerThreads) {
+            for (int tid : workerThreads) {
+                try {
+                    Process.setThreadPriority(tid, level.threadPriority);
+                } catch (Exception e) {
+                    // Thread ended meanwhile
+                }
+            }
+        }
+
+        listener.onLevelChanged(level);
+    }
+}
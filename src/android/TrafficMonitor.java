@@ -0,0 +1,389 @@
+package de.einfachhans.BackgroundMode;
+
+import android.content.Context;
+import android.net.ConnectivityManager;
+import android.net.Network;
+import android.net.NetworkCapabilities;
+import android.net.TrafficStats;
+import android.os.Build;
+import android.os.Process;
+import android.os.SystemClock;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static android.content.Context.CONNECTIVITY_SERVICE;
+
+/**
+ * Data usage accounting and the transfer policy for metered networks.
+ *
+ * A session lasts from creation to destruction of the foreground service.
+ * The bytes of the app are sampled from TrafficStats on every network
+ * change, so they can be split by metered and roaming networks. Transfers
+ * of the plugin tag their sockets with STATS_TAG and report their bytes,
+ * bulk transfers are paused or throttled according to the policy. Throttling is opt-in, by default only roaming
+ * pauses bulk transfers.
+ */
+final class TrafficMonitor {
+
+    static final String ALLOW    = "allow";
+    static final String THROTTLE = "throttle";
+    static final String PAUSE    = "pause";
+
+    // Tag of the sockets of plugin transfers, see TrafficStats
+    static final int STATS_TAG = 0x42470001;
+
+    // Bytes per second of throttled bulk transfers
+    private static final long DEFAULT_RATE = 128 * 1024;
+
+    // Number of finished sessions kept for the summary
+    private static final int HISTORY_SIZE = 20;
+
+    // Policy for bulk transfers
+    private static String meteredPolicy = ALLOW;
+    private static String roamingPolicy = PAUSE;
+    private static long throttleRate = DEFAULT_RATE;
+
+    // State of the default network
+    private static boolean connected = true;
+    private static boolean metered = false;
+    private static boolean roaming = false;
+
+    private static ConnectivityManager connectivity;
+
+    // If the network callback is registered, else the state gets polled
+    private static boolean listening = false;
+
+    // Running session or null
+    private static Usage session;
+
+    // Bytes of the app and the plugin since the monitor got initialized
+    private static final Usage total = new Usage();
+
+    // Finished sessions, newest last
+    private static final Deque<JSONObject> sessions = new ArrayDeque<>();
+
+    /**
+     * Informed when a bulk transfer gets paused by the policy and when it
+     * continues, e.g. to release the work which keeps the service.
+     */
+    interface PauseListener {
+        void onPause (boolean paused);
+    }
+
+    private TrafficMonitor() {}
+
+    /**
+     * Start to follow the default network, does nothing if already done.
+     */
+    static synchronized void init (Context context)
+    {
+        if (connectivity != null)
+            return;
+
+        connectivity = (ConnectivityManager) context.getApplicationContext()
+                .getSystemService(CONNECTIVITY_SERVICE);
+
+        if (connectivity == null)
+            return;
+
+        refresh();
+
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.N)
+            return;
+
+        try {
+            connectivity.registerDefaultNetworkCallback(new ConnectivityManager.NetworkCallback() {
+                @Override
+                public void onCapabilitiesChanged (Network network, NetworkCapabilities caps) {
+                    update(caps);
+                }
+
+                @Override
+                public void onLost (Network network) {
+                    update(null);
+                }
+            });
+            listening = true;
+        } catch (Exception e) {
+            LogRing.error("TrafficMonitor", e);
+        }
+    }
+
+    /**
+     * The foreground service got created.
+     */
+    static synchronized void startSession (Context context)
+    {
+        init(context);
+
+        session = new Usage();
+        account();
+    }
+
+    /**
+     * The foreground service got destroyed.
+     */
+    static synchronized void endSession()
+    {
+        if (session == null)
+            return;
+
+        account();
+        add(session.toJSON());
+        session = null;
+    }
+
+    /**
+     * Update the policy, null values keep the current setting.
+     */
+    static synchronized void setPolicy (JSONObject policy)
+    {
+        meteredPolicy = toPolicy(policy.optString("metered", null), meteredPolicy);
+        roamingPolicy = toPolicy(policy.optString("roaming", null), roamingPolicy);
+
+        long rate = policy.optLong("throttleRate", 0);
+
+        if (rate > 0) {
+            throttleRate = rate;
+        }
+    }
+
+    /**
+     * The policy which applies to bulk transfers right now.
+     */
+    static synchronized String getPolicy()
+    {
+        if (!listening) {
+            refresh();
+        }
+
+        if (roaming)
+            return roamingPolicy;
+
+        return metered ? meteredPolicy : ALLOW;
+    }
+
+    /**
+     * If the state of the default network is followed through a callback,
+     * else it gets polled on each read of the policy.
+     */
+    static synchronized boolean isListening()
+    {
+        return listening;
+    }
+
+    /**
+     * Pace a bulk transfer while it is throttled, returns early once the
+     * transfer got cancelled.
+     */
+    static void throttle (int bytes, AtomicBoolean cancelled) throws InterruptedException
+    {
+        long rate;
+
+        synchronized (TrafficMonitor.class) {
+            if (!THROTTLE.equals(getPolicy()))
+                return;
+
+            rate = throttleRate;
+        }
+
+        if (bytes > 0 && !cancelled.get()) {
+            Thread.sleep(bytes * 1000L / rate);
+        }
+    }
+
+    /**
+     * Bytes moved by a transfer of the plugin.
+     */
+    static synchronized void onTransferred (long rx, long tx)
+    {
+        total.addPlugin(rx, tx);
+
+        if (session != null) {
+            session.addPlugin(rx, tx);
+        }
+    }
+
+    /**
+     * Usage of the current session, the recent ones and the network state.
+     */
+    static synchronized JSONObject getSummary()
+    {
+        JSONObject summary = new JSONObject();
+
+        account();
+
+        put(summary, "network", getNetworkState());
+        put(summary, "total", total.toJSON());
+        put(summary, "current", session == null ? null : session.toJSON());
+        put(summary, "recentSessions", new JSONArray(sessions));
+
+        return summary;
+    }
+
+    /**
+     * State of the default network and the resulting policy.
+     */
+    private static JSONObject getNetworkState()
+    {
+        JSONObject state = new JSONObject();
+
+        put(state, "connected", connected);
+        put(state, "metered", metered);
+        put(state, "roaming", roaming);
+        put(state, "policy", getPolicy());
+        put(state, "meteredPolicy", meteredPolicy);
+        put(state, "roamingPolicy", roamingPolicy);
+        put(state, "throttleRate", throttleRate);
+
+        return state;
+    }
+
+    /**
+     * Read the state of the default network on devices without callback.
+     */
+    private static void refresh()
+    {
+        Network network = connectivity != null ? connectivity.getActiveNetwork() : null;
+
+        apply(network != null ? connectivity.getNetworkCapabilities(network) : null);
+    }
+
+    /**
+     * The default network changed, report a changed policy to JS.
+     */
+    private static void update (NetworkCapabilities caps)
+    {
+        String state = null;
+
+        synchronized (TrafficMonitor.class) {
+            String before = getPolicy();
+
+            apply(caps);
+
+            if (!before.equals(getPolicy())) {
+                state = getNetworkState().toString();
+            }
+        }
+
+        if (state != null) {
+            Downloader.onPolicyChanged();
+            BackgroundMode.emit("traffic", state);
+        }
+    }
+
+    /**
+     * Take over the capabilities after accounting the bytes of the
+     * previous network.
+     */
+    private static void apply (NetworkCapabilities caps)
+    {
+        account();
+
+        connected = caps != null;
+        metered   = caps != null
+                && !caps.hasCapability(NetworkCapabilities.NET_CAPABILITY_NOT_METERED);
+        roaming   = caps != null && Build.VERSION.SDK_INT >= Build.VERSION_CODES.P
+                && !caps.hasCapability(NetworkCapabilities.NET_CAPABILITY_NOT_ROAMING);
+    }
+
+    /**
+     * Attribute the bytes since the last sample to the current network.
+     */
+    private static void account()
+    {
+        int uid = Process.myUid();
+        long rx = Math.max(0, TrafficStats.getUidRxBytes(uid));
+        long tx = Math.max(0, TrafficStats.getUidTxBytes(uid));
+
+        total.addApp(rx, tx, metered, roaming);
+
+        if (session != null) {
+            session.addApp(rx, tx, metered, roaming);
+        }
+    }
+
+    private static String toPolicy (String value, String fallback)
+    {
+        if (ALLOW.equals(value) || THROTTLE.equals(value) || PAUSE.equals(value))
+            return value;
+
+        return fallback;
+    }
+
+    private static void add (JSONObject item)
+    {
+        sessions.addLast(item);
+
+        if (sessions.size() > HISTORY_SIZE) {
+            sessions.removeFirst();
+        }
+    }
+
+    private static void put (JSONObject obj, String key, Object value)
+    {
+        try {
+            obj.put(key, value);
+        } catch (JSONException e) {
+            // Keys are never null
+        }
+    }
+
+    /**
+     * Bytes of the app and of the plugin transfers during a period.
+     */
+    private static final class Usage {
+        final long start = SystemClock.elapsedRealtime();
+
+        // Last sampled uid counters, -1 before the first sample
+        long lastRx = -1;
+        long lastTx = -1;
+
+        long rx, tx, meteredBytes, roamingBytes;
+        long pluginRx, pluginTx;
+
+        void addApp (long uidRx, long uidTx, boolean metered, boolean roaming)
+        {
+            if (lastRx >= 0 && uidRx >= lastRx && uidTx >= lastTx) {
+                long drx = uidRx - lastRx;
+                long dtx = uidTx - lastTx;
+
+                rx += drx;
+                tx += dtx;
+
+                if (metered) meteredBytes += drx + dtx;
+                if (roaming) roamingBytes += drx + dtx;
+            }
+
+            lastRx = uidRx;
+            lastTx = uidTx;
+        }
+
+        void addPlugin (long rx, long tx)
+        {
+            pluginRx += rx;
+            pluginTx += tx;
+        }
+
+        JSONObject toJSON()
+        {
+            JSONObject item = new JSONObject();
+
+            put(item, "duration", SystemClock.elapsedRealtime() - start);
+            put(item, "rx", rx);
+            put(item, "tx", tx);
+            put(item, "metered", meteredBytes);
+            put(item, "roaming", roamingBytes);
+            put(item, "pluginRx", pluginRx);
+            put(item, "pluginTx", pluginTx);
+
+            return item;
+        }
+    }
+}
@@ -0,0 +1,444 @@
+package de.einfachhans.BackgroundMode;
+
+import android.app.AlarmManager;
+import android.app.PendingIntent;
+import android.content.Context;
+import android.content.Intent;
+import android.content.SharedPreferences;
+import android.os.Build;
+import android.os.PowerManager;
+import android.os.SystemClock;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static android.content.Context.ALARM_SERVICE;
+import static android.content.Context.MODE_PRIVATE;
+import static android.content.Context.POWER_SERVICE;
+
+/**
+ * Plans shared wakeup windows for the registered periodic work.
+ *
+ * All periodic entries whose tolerances overlap are fired by the same
+ * while-idle alarm. While the device is in Doze the windows are spaced by
+ * the per-app quota of while-idle alarms, so the planned fire times stay
+ * close to what the system will actually deliver.
+ *
+ * The entries, the planned window and the stats are persisted, so the
+ * alarm keeps its meaning once the process got killed, and the windows
+ * are planned again after a reboot. Times are stored as wall clock time.
+ * Wakeups which fire without a web view are queued and delivered on next
+ * resume.
+ */
+final class WakeupPlanner {
+
+    // Minimum spacing of while-idle alarms while the device is in Doze
+    private static final long IDLE_ALARM_SPACING = 9 * 60 * 1000;
+
+    // Timeout of the wake lock held while the web view handles a wakeup
+    private static final long WAKEUP_TIMEOUT = 10 * 1000;
+
+    // Number of recent wakeups reported to JS
+    private static final int HISTORY_SIZE = 20;
+
+    private static final int REQUEST_CODE = 0x4247;
+
+    private static final String PREFS_NAME = "backgroundmode_wakeups";
+    private static final String KEY_ENTRIES = "entries";
+    private static final String KEY_UNDELIVERED = "undelivered";
+    private static final String KEY_STATS = "stats";
+
+    // Registered periodic entries by id
+    private static final Map<String, Entry> entries = new LinkedHashMap<>();
+
+    // Most recent wakeups, newest last
+    private static final Deque<JSONObject> history = new ArrayDeque<>();
+
+    // Wakeups which could not be delivered to the web view yet
+    private static final Deque<JSONObject> undelivered = new ArrayDeque<>();
+
+    // If the persisted entries got loaded
+    private static boolean loaded = false;
+
+    // Elapsed realtime of the planned window or 0 if none is planned
+    private static long plannedAt = 0;
+
+    // Elapsed realtime of the last delivered alarm
+    private static long lastFiredAt = 0;
+
+    // Total number of wakeups and the sum and max of their delays
+    private static long wakeups = 0;
+    private static long totalDelay = 0;
+    private static long maxDelay = 0;
+
+    private WakeupPlanner() {}
+
+    /**
+     * Register or replace a periodic entry and plan the next window.
+     */
+    static synchronized void add (Context context, String id, long interval, long tolerance)
+    {
+        long now = SystemClock.elapsedRealtime();
+
+        if (interval <= 0)
+            return;
+
+        load(context);
+        entries.put(id, new Entry(id, interval, Math.max(0, tolerance), now + interval));
+        plan(context);
+        save(context);
+    }
+
+    /**
+     * Unregister a periodic entry and replan the remaining ones.
+     */
+    static synchronized void remove (Context context, String id)
+    {
+        load(context);
+
+        if (entries.remove(id) != null) {
+            plan(context);
+            save(context);
+        }
+    }
+
+    /**
+     * Called by the receiver once the alarm of the planned window fired.
+     */
+    static synchronized void onAlarm (Context context)
+    {
+        load(context);
+
+        long now       = SystemClock.elapsedRealtime();
+        long requested = plannedAt;
+        JSONArray due  = new JSONArray();
+
+        plannedAt   = 0;
+        lastFiredAt = now;
+
+        for (Entry entry : entries.values()) {
+            if (entry.due > now)
+                continue;
+
+            due.put(entry.id);
+            entry.due += entry.interval;
+
+            if (entry.due <= now) {
+                entry.due = now + entry.interval;
+            }
+        }
+
+        if (due.length() > 0) {
+            JSONObject wakeup = record(due, requested, now);
+
+            if (BackgroundMode.emit("wakeup", wakeup.toString())) {
+                holdWakeLock(context);
+            } else {
+                undelivered.addLast(wakeup);
+
+                if (undelivered.size() > HISTORY_SIZE) {
+                    undelivered.removeFirst();
+                }
+            }
+
+        }
+
+        plan(context);
+        save(context);
+    }
+
+    /**
+     * The device booted or the app got updated, the alarm is gone.
+     */
+    static synchronized void onBoot (Context context)
+    {
+        load(context);
+
+        plannedAt   = 0;
+        lastFiredAt = 0;
+
+        plan(context);
+        save(context);
+    }
+
+    /**
+     * Deliver the wakeups which fired while there was no web view.
+     */
+    static synchronized void flushUndelivered (Context context)
+    {
+        load(context);
+
+        if (undelivered.isEmpty())
+            return;
+
+        while (!undelivered.isEmpty()) {
+            if (!BackgroundMode.emit("wakeup", undelivered.peekFirst().toString()))
+                break;
+
+            undelivered.removeFirst();
+        }
+
+        save(context);
+    }
+
+    /**
+     * Summary of the requested versus actual fire times.
+     */
+    static synchronized JSONObject getStats (Context context)
+    {
+        JSONObject stats = new JSONObject();
+
+        load(context);
+
+        try {
+            stats.put("wakeups", wakeups);
+            stats.put("avgDelay", wakeups == 0 ? 0 : totalDelay / wakeups);
+            stats.put("maxDelay", maxDelay);
+            stats.put("planned", plannedAt == 0 ? 0
+                    : plannedAt - SystemClock.elapsedRealtime());
+            stats.put("entries", entries.size());
+            stats.put("undelivered", undelivered.size());
+            stats.put("recent", new JSONArray(history));
+        } catch (JSONException e) {
+            // Keys are never null
+        }
+
+        return stats;
+    }
+
+    /**
+     * Find the latest time which still satisfies the tolerance of every
+     * entry due until then and set the alarm for that window.
+     */
+    private static void plan (Context context)
+    {
+        AlarmManager am  = (AlarmManager) context.getSystemService(ALARM_SERVICE);
+        PendingIntent pi = getAlarmIntent(context);
+
+        if (am == null)
+            return;
+
+        if (entries.isEmpty()) {
+            am.cancel(pi);
+            plannedAt = 0;
+            return;
+        }
+
+        List<Entry> sorted = new ArrayList<>(entries.values());
+        Collections.sort(sorted, (a, b) -> Long.compare(a.due, b.due));
+
+        long window = Long.MAX_VALUE;
+
+        for (Entry entry : sorted) {
+            if (entry.due > window)
+                break;
+
+            window = Math.min(window, entry.due + entry.tolerance);
+        }
+
+        if (isDeviceIdle(context) && lastFiredAt > 0) {
+            window = Math.max(window, lastFiredAt + IDLE_ALARM_SPACING);
+        }
+
+        plannedAt = window;
+
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.S && !am.canScheduleExactAlarms()) {
+            am.setAndAllowWhileIdle(AlarmManager.ELAPSED_REALTIME_WAKEUP, window, pi);
+        } else {
+            am.setExactAndAllowWhileIdle(AlarmManager.ELAPSED_REALTIME_WAKEUP, window, pi);
+        }
+    }
+
+    /**
+     * Add a wakeup to the history and update the delay stats.
+     */
+    private static JSONObject record (JSONArray ids, long requested, long actual)
+    {
+        long delay = requested == 0 ? 0 : Math.max(0, actual - requested);
+        JSONObject item = new JSONObject();
+
+        try {
+            item.put("ids", ids);
+            item.put("requested", requested);
+            item.put("actual", actual);
+            item.put("delay", delay);
+        } catch (JSONException e) {
+            // Keys are never null
+        }
+
+        wakeups++;
+        totalDelay += delay;
+        maxDelay = Math.max(maxDelay, delay);
+
+        history.addLast(item);
+
+        if (history.size() > HISTORY_SIZE) {
+            history.removeFirst();
+        }
+
+        return item;
+    }
+
+    /**
+     * Restore the entries and undelivered wakeups of a previous process.
+     * Due times beyond one interval stem from before a reboot and get reset.
+     */
+    private static void load (Context context)
+    {
+        if (loaded)
+            return;
+
+        loaded = true;
+
+        SharedPreferences prefs = context.getSharedPreferences(PREFS_NAME, MODE_PRIVATE);
+        long now    = SystemClock.elapsedRealtime();
+        long offset = now - System.currentTimeMillis();
+
+        try {
+            JSONArray items = new JSONArray(prefs.getString(KEY_ENTRIES, "[]"));
+
+            for (int i = 0; i < items.length(); i++) {
+                JSONObject item = items.getJSONObject(i);
+                String id       = item.getString("id");
+                long interval   = item.getLong("interval");
+                long due        = item.getLong("due") + offset;
+
+                if (entries.containsKey(id))
+                    continue;
+
+                if (due > now + interval) {
+                    due = now + interval;
+                }
+
+                entries.put(id, new Entry(id, interval, item.getLong("tolerance"), due));
+            }
+
+            JSONArray queued = new JSONArray(prefs.getString(KEY_UNDELIVERED, "[]"));
+
+            for (int i = 0; i < queued.length(); i++) {
+                undelivered.addLast(queued.getJSONObject(i));
+            }
+
+            JSONObject stats = new JSONObject(prefs.getString(KEY_STATS, "{}"));
+            JSONArray recent = stats.optJSONArray("recent");
+
+            wakeups     = stats.optLong("wakeups");
+            totalDelay  = stats.optLong("totalDelay");
+            maxDelay    = stats.optLong("maxDelay");
+            plannedAt   = toElapsed(stats.optLong("plannedAt"), offset);
+            lastFiredAt = toElapsed(stats.optLong("lastFiredAt"), offset);
+
+            for (int i = 0; recent != null && i < recent.length(); i++) {
+                history.addLast(recent.getJSONObject(i));
+            }
+        } catch (JSONException e) {
+            LogRing.error("WakeupPlanner", e);
+        }
+    }
+
+    private static void save (Context context)
+    {
+        JSONArray items  = new JSONArray();
+        JSONObject stats = new JSONObject();
+        long offset      = System.currentTimeMillis() - SystemClock.elapsedRealtime();
+
+        for (Entry entry : entries.values()) {
+            JSONObject item = new JSONObject();
+
+            try {
+                item.put("id", entry.id);
+                item.put("interval", entry.interval);
+                item.put("tolerance", entry.tolerance);
+                item.put("due", entry.due + offset);
+            } catch (JSONException e) {
+                // Keys are never null
+            }
+
+            items.put(item);
+        }
+
+        try {
+            stats.put("wakeups", wakeups);
+            stats.put("totalDelay", totalDelay);
+            stats.put("maxDelay", maxDelay);
+            stats.put("plannedAt", plannedAt == 0 ? 0 : plannedAt + offset);
+            stats.put("lastFiredAt", lastFiredAt == 0 ? 0 : lastFiredAt + offset);
+            stats.put("recent", new JSONArray(history));
+        } catch (JSONException e) {
+            // Keys are never null
+        }
+
+        context.getSharedPreferences(PREFS_NAME, MODE_PRIVATE).edit()
+                .putString(KEY_ENTRIES, items.toString())
+                .putString(KEY_UNDELIVERED, new JSONArray(undelivered).toString())
+                .putString(KEY_STATS, stats.toString())
+                .apply();
+    }
+
+    /**
+     * Convert a stored wall clock time, 0 stays 0. Times from before a
+     * reboot end up at or below 0 and count as unknown.
+     */
+    private static long toElapsed (long time, long offset)
+    {
+        return time == 0 ? 0 : Math.max(0, time + offset);
+    }
+
+    /**
+     * Keep the CPU awake for a moment so the web view can handle the event.
+     */
+    private static void holdWakeLock (Context context)
+    {
+        PowerManager pm = (PowerManager) context.getSystemService(POWER_SERVICE);
+
+        if (pm == null)
+            return;
+
+        PowerManager.WakeLock lock = pm.newWakeLock(
+                PowerManager.PARTIAL_WAKE_LOCK, "backgroundmode:wakeup");
+
+        lock.setReferenceCounted(false);
+        lock.acquire(WAKEUP_TIMEOUT);
+    }
+
+    private static boolean isDeviceIdle (Context context)
+    {
+        PowerManager pm = (PowerManager) context.getSystemService(POWER_SERVICE);
+        return pm != null && pm.isDeviceIdleMode();
+    }
+
+    private static PendingIntent getAlarmIntent (Context context)
+    {
+        Intent intent = new Intent(context, WakeupReceiver.class);
+
+        return PendingIntent.getBroadcast(context, REQUEST_CODE, intent,
+                PendingIntent.FLAG_UPDATE_CURRENT | PendingIntent.FLAG_IMMUTABLE);
+    }
+
+    /**
+     * A periodic entry with its next due time in elapsed realtime.
+     */
+    private static final class Entry {
+        final String id;
+        final long interval;
+        final long tolerance;
+        long due;
+
+        Entry (String id, long interval, long tolerance, long due)
+        {
+            this.id        = id;
+            this.interval  = interval;
+            this.tolerance = tolerance;
+            this.due       = due;
+        }
+    }
+}
@@ -0,0 +1,24 @@
+package de.einfachhans.BackgroundMode;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+
+/**
+ * Receives the while-idle alarms planned by the wakeup planner, and the
+ * boot and update broadcasts after which the alarm needs to be set again.
+ */
+public class WakeupReceiver extends BroadcastReceiver {
+
+    @Override
+    public void onReceive (Context context, Intent intent) {
+        String action = intent.getAction();
+
+        if (Intent.ACTION_BOOT_COMPLETED.equals(action)
+                || Intent.ACTION_MY_PACKAGE_REPLACED.equals(action)) {
+            WakeupPlanner.onBoot(context.getApplicationContext());
+        } else {
+            WakeupPlanner.onAlarm(context.getApplicationContext());
+        }
+    }
+}
@@ -31,10 +31,21 @@ var exec    = require('cordova/exec'),
  */
 exports.enable = function()
 {
-    if (this.isEnabled())
+    // On Android a cancel from the notification might not be delivered yet,
+    // so let the native side decide
+    if (this.isEnabled() && !this._isAndroid)
         return;
 
-    var fn = function() {
+    var fn = function(cancel) {
+        // Deliver the pending cancel first, it disables the mode in JS too
+        if (cancel)
+        {
+            exports.fireEvent('action', cancel);
+        }
+
+        if (exports._isEnabled)
+            return;
+
         exports._isEnabled = true;
         exports.fireEvent('enable');
     };
@@ -116,10 +127,18 @@ exports.setDefaults = function (overrides, fn)
         }
     }
 
-    if (this._isAndroid)
+    if (!this._isAndroid)
+        return;
+
+    // Skip the bridge if the native side has these defaults already
+    if (this._isEqual(defaults, this._nativeDefaults))
     {
-        cordova.exec((fn || function () {}), null, 'BackgroundMode', 'configure', [defaults, false]);
+        if (fn) fn();
+        return;
     }
+
+    this._nativeDefaults = JSON.parse(JSON.stringify(defaults));
+    cordova.exec((fn || function () {}), null, 'BackgroundMode', 'configure', [defaults, false]);
 };
 
 /**
@@ -146,6 +165,10 @@ exports.configure = function (options)
 
     this._mergeObjects(options, settings);
     this._mergeObjects(options, defaults);
+
+    if (this._isEqual(options, settings))
+        return;
+
     this._settings = options;
 
     cordova.exec(null, null, 'BackgroundMode', 'configure', [options, true]);
@@ -210,13 +233,16 @@ exports.moveToBackground = function()
 /**
  * Move app to foreground when in background (Android only).
  *
+ * @param [ Function ] fn Callback invoked with the status and the time
+ *                        in ms until the app was resumed.
+ *
  * @return [ Void ]
  */
-exports.moveToForeground = function()
+exports.moveToForeground = function (fn)
 {
     if (this.isActive() && this._isAndroid)
     {
-        cordova.exec(null, null, 'BackgroundModeExt', 'foreground', []);
+        cordova.exec(fn || null, null, 'BackgroundModeExt', 'foreground', []);
     }
 };
 
@@ -281,26 +307,803 @@ exports.isScreenOff = function (fn)
 /**
  * Wake up the device.
  *
+ * @param [ Function ] fn Callback invoked with the status and the time
+ *                        in ms until the screen was on.
+ *
  * @return [ Void ]
  */
-exports.wakeUp = function()
+exports.wakeUp = function (fn)
 {
     if (this._isAndroid)
     {
-        cordova.exec(null, null, 'BackgroundModeExt', 'wakeup', []);
+        cordova.exec(fn || null, null, 'BackgroundModeExt', 'wakeup', []);
     }
 };
 
 /**
  * Wake up and unlock the device.
  *
+ * @param [ Function ] fn Callback invoked with the status and the time
+ *                        in ms until the app was interactive.
+ *
+ * @return [ Void ]
+ */
+exports.unlock = function (fn)
+{
+    if (this._isAndroid)
+    {
+        cordova.exec(fn || null, null, 'BackgroundModeExt', 'unlock', []);
+    }
+};
+
+/**
+ * Register a unit of background work (Android only).
+ *
+ * Immediate work keeps the foreground service running while the app is in
+ * background. Deferrable work is batched into a JobScheduler job and the
+ * 'task' event is fired with its id once the constraints are met.
+ *
+ * @param [ String ] id The id of the task.
+ * @param [ Object ] options Dict with deferrable, charging, unmetered,
+ *                           idle and delay (ms).
+ * @param [ Function ] fn Callback invoked once the task is registered.
+ *
+ * @return [ Void ]
+ */
+exports.addTask = function (id, options, fn)
+{
+    if (this._isAndroid)
+    {
+        cordova.exec(fn, null, 'BackgroundMode', 'addTask', [id, options || {}]);
+    }
+};
+
+/**
+ * Mark a unit of background work as done (Android only).
+ *
+ * @param [ String ] id The id of the task.
+ * @param [ Function ] fn Callback invoked once the task is finished.
+ *
+ * @return [ Void ]
+ */
+exports.finishTask = function (id, fn)
+{
+    if (this._isAndroid)
+    {
+        cordova.exec(fn, null, 'BackgroundMode', 'finishTask', [id]);
+    }
+};
+
+/**
+ * Register periodic work which wakes up the device, even in Doze (Android only).
+ * Entries with overlapping tolerances share the same wakeup and the 'wakeup'
+ * event is fired with the ids and the requested and actual fire times.
+ *
+ * @param [ String ] id The id of the periodic work.
+ * @param [ Number ] interval The interval in ms.
+ * @param [ Number ] tolerance How long the wakeup may be postponed in ms.
+ * @param [ Function ] fn Callback invoked once the work is registered.
+ *
+ * @return [ Void ]
+ */
+exports.addWakeup = function (id, interval, tolerance, fn)
+{
+    if (this._isAndroid)
+    {
+        cordova.exec(fn, null, 'BackgroundMode', 'addWakeup', [id, interval, tolerance || 0]);
+    }
+};
+
+/**
+ * Unregister periodic work (Android only).
+ *
+ * @param [ String ] id The id of the periodic work.
+ * @param [ Function ] fn Callback invoked once the work is unregistered.
+ *
+ * @return [ Void ]
+ */
+exports.removeWakeup = function (id, fn)
+{
+    if (this._isAndroid)
+    {
+        cordova.exec(fn, null, 'BackgroundMode', 'removeWakeup', [id]);
+    }
+};
+
+/**
+ * Requested versus actual fire times of the recent wakeups.
+ *
+ * @param [ Function ] fn Callback function to invoke with the stats.
+ *
+ * @return [ Void ]
+ */
+exports.getWakeupStats = function (fn)
+{
+    if (this._isAndroid)
+    {
+        cordova.exec(fn, null, 'BackgroundMode', 'wakeupStats', []);
+    }
+    else
+    {
+        fn(undefined);
+    }
+};
+
+/**
+ * Stream the items of a large JSON file to JS in chunks (Android only).
+ * Only the requested fields are kept and the next chunk is parsed once
+ * the callback of the previous one has returned.
+ *
+ * @param [ String ] source The file path, file:// or content:// URL.
+ * @param [ Object ] options Dict with path (dotted path to the array),
+ *                           fields, chunkSize and window.
+ * @param [ Function ] fn Callback invoked with each chunk.
+ * @param [ Function ] error Callback invoked if the stream failed.
+ *
+ * @return [ String ] The id of the stream.
+ */
+exports.streamJson = function (source, options, fn, error)
+{
+    var id = 'stream' + (++this._streams);
+
+    if (!this._isAndroid)
+        return id;
+
+    var onChunk = function (chunk) {
+        try {
+            fn(chunk);
+        } finally {
+            if (!chunk.done) {
+                cordova.exec(null, null, 'BackgroundMode', 'ackChunk', [id]);
+            }
+        }
+    };
+
+    cordova.exec(onChunk, error, 'BackgroundMode', 'streamJson', [id, source, options || {}]);
+
+    return id;
+};
+
+/**
+ * Cancel a running stream (Android only).
+ *
+ * @param [ String ] id The id of the stream.
+ *
+ * @return [ Void ]
+ */
+exports.cancelStream = function (id)
+{
+    if (this._isAndroid)
+    {
+        cordova.exec(null, null, 'BackgroundMode', 'cancelStream', [id]);
+    }
+};
+
+/**
+ * Store data in the native disk cache (Android only).
+ *
+ * @param [ String ] key The key of the entry.
+ * @param [ String ] data The content, plain text or base64 encoded.
+ * @param [ Object ] options Dict with encoding ('utf8' or 'base64').
+ * @param [ Function ] fn Callback invoked with the stats of the entry.
+ * @param [ Function ] error Callback invoked if the entry wasn't stored.
+ *
+ * @return [ Void ]
+ */
+exports.cachePut = function (key, data, options, fn, error)
+{
+    var encoding = (options || {}).encoding || 'utf8';
+
+    if (this._isAndroid)
+    {
+        cordova.exec(fn, error, 'BackgroundMode', 'cache', ['put', key, data, encoding]);
+    }
+};
+
+/**
+ * Read data from the native disk cache (Android only).
+ *
+ * @param [ String ] key The key of the entry.
+ * @param [ Object ] options Dict with encoding ('utf8' or 'base64').
+ * @param [ Function ] fn Callback invoked with the content or null.
+ * @param [ Function ] error Callback invoked if the entry wasn't read.
+ *
+ * @return [ Void ]
+ */
+exports.cacheGet = function (key, options, fn, error)
+{
+    var encoding = (options || {}).encoding || 'utf8';
+
+    if (this._isAndroid)
+    {
+        cordova.exec(fn, error, 'BackgroundMode', 'cache', ['get', key, null, encoding]);
+    }
+    else
+    {
+        fn(null);
+    }
+};
+
+/**
+ * Size, timestamps and file:// path of a cached entry (Android only).
+ *
+ * @param [ String ] key The key of the entry.
+ * @param [ Function ] fn Callback invoked with the stats or null.
+ *
+ * @return [ Void ]
+ */
+exports.cacheStat = function (key, fn)
+{
+    if (this._isAndroid)
+    {
+        cordova.exec(fn, null, 'BackgroundMode', 'cache', ['stat', key]);
+    }
+    else
+    {
+        fn(null);
+    }
+};
+
+/**
+ * The file:// path of a cached entry for direct use by the web view (Android only).
+ *
+ * @param [ String ] key The key of the entry.
+ * @param [ Function ] fn Callback invoked with the path or null.
+ *
+ * @return [ Void ]
+ */
+exports.cachePath = function (key, fn)
+{
+    this.cacheStat(key, function (stat) {
+        fn(stat ? stat.path : null);
+    });
+};
+
+/**
+ * Remove an entry from the native disk cache (Android only).
+ *
+ * @param [ String ] key The key of the entry.
+ * @param [ Function ] fn Callback invoked once the entry is removed.
+ *
+ * @return [ Void ]
+ */
+exports.cacheRemove = function (key, fn)
+{
+    if (this._isAndroid)
+    {
+        cordova.exec(fn, null, 'BackgroundMode', 'cache', ['remove', key]);
+    }
+};
+
+/**
+ * Set the limits of the native disk cache (Android only).
+ *
+ * @param [ Object ] limits Dict with maxSize (bytes) and maxAge (ms).
+ * @param [ Function ] fn Callback invoked with the stats of the cache.
+ *
+ * @return [ Void ]
+ */
+exports.configureCache = function (limits, fn)
+{
+    if (this._isAndroid)
+    {
+        cordova.exec(fn, null, 'BackgroundMode', 'cache', ['limits', null, limits || {}]);
+    }
+};
+
+/**
+ * Measure the native disk cache with a separate cache which gets deleted
+ * afterwards (Android only). Reports the fill rate, the hit latency
+ * (avg, p50, p99 in µs) and the eviction throughput.
+ *
+ * @param [ Object ] options Dict with entries (default 100000) and
+ *                           entrySize in bytes (default 64).
+ * @param [ Function ] fn Callback invoked with the results.
+ * @param [ Function ] error Callback invoked if the benchmark failed.
+ *
+ * @return [ Void ]
+ */
+exports.benchmarkCache = function (options, fn, error)
+{
+    if (this._isAndroid)
+    {
+        cordova.exec(fn, error, 'BackgroundMode', 'cache', ['bench', null, options || {}]);
+    }
+};
+
+/**
+ * The quality of service level the background work should run with
+ * (Android only). Derived from the thermal status, the battery and the
+ * power save mode, changes are published through the 'qos' event.
+ *
+ * @param [ Function ] fn Callback function to invoke with the level.
+ *
+ * @return [ Void ]
+ */
+exports.getQos = function (fn)
+{
+    if (this._isAndroid)
+    {
+        cordova.exec(fn, null, 'BackgroundMode', 'qos', []);
+    }
+    else
+    {
+        fn(undefined);
+    }
+};
+
+/**
+ * Download a file into the native disk cache (Android only). The bytes
+ * are counted for data usage accounting and bulk downloads follow the
+ * transfer policy on metered and roaming networks.
+ *
+ * @param [ String ] url The URL to download.
+ * @param [ String ] key The key of the cache entry.
+ * @param [ Object ] options Dict with headers and bulk (default true).
+ * @param [ Function ] fn Callback invoked with the stats of the entry.
+ * @param [ Function ] error Callback invoked if the download failed.
+ *
+ * @return [ String ] The id of the download.
+ */
+exports.download = function (url, key, options, fn, error)
+{
+    var id = 'download' + (++this._downloads);
+
+    if (this._isAndroid)
+    {
+        cordova.exec(fn, error, 'BackgroundMode', 'download', [id, url, key, options || {}]);
+    }
+    else if (error)
+    {
+        error('Not supported');
+    }
+
+    return id;
+};
+
+/**
+ * Cancel a running download (Android only).
+ *
+ * @param [ String ] id The id of the download.
+ *
+ * @return [ Void ]
+ */
+exports.cancelDownload = function (id)
+{
+    if (this._isAndroid)
+    {
+        cordova.exec(null, null, 'BackgroundMode', 'cancelDownload', [id]);
+    }
+};
+
+/**
+ * Data usage of the current and recent background sessions, split by
+ * metered and roaming networks, and the state of the network (Android only).
+ *
+ * @param [ Function ] fn Callback function to invoke with the summary.
+ *
+ * @return [ Void ]
+ */
+exports.getTrafficStats = function (fn)
+{
+    if (this._isAndroid)
+    {
+        cordova.exec(fn, null, 'BackgroundMode', 'traffic', [null]);
+    }
+    else
+    {
+        fn(undefined);
+    }
+};
+
+/**
+ * Set the policy of bulk transfers on metered and roaming networks (Android only).
+ *
+ * @param [ Object ] policy Dict with metered and roaming ('allow', 'throttle'
+ *                          or 'pause') and throttleRate in bytes per second.
+ *                          Defaults to allow on metered, pause while roaming.
+ * @param [ Function ] fn Callback invoked with the data usage summary.
+ *
  * @return [ Void ]
  */
-exports.unlock = function()
+exports.setTrafficPolicy = function (policy, fn)
 {
     if (this._isAndroid)
     {
-        cordova.exec(null, null, 'BackgroundModeExt', 'unlock', []);
+        cordova.exec(fn || null, null, 'BackgroundMode', 'traffic', [policy]);
+    }
+};
+
+/**
+ * Deaths of the background service detected by the watchdog (Android only).
+ * Each death holds the kill time, the restart latency in ms, the
+ * manufacturer, the exit reason since Android 11 and if the app start
+ * settings were opened before. Sessions, deaths and other exits are
+ * counted for with and without the app start settings.
+ *
+ * @param [ Function ] fn Callback function to invoke with the stats.
+ *
+ * @return [ Void ]
+ */
+exports.getWatchdogStats = function (fn)
+{
+    if (this._isAndroid)
+    {
+        cordova.exec(fn, null, 'BackgroundMode', 'watchdog', []);
+    }
+    else
+    {
+        fn(undefined);
+    }
+};
+
+/**
+ * What the plugin cost at startup in ms (Android only): the time spent in
+ * its native initialization, the time from the process start until then
+ * and the time of the last service creation. -1 if not measured yet.
+ *
+ * @param [ Function ] fn Callback function to invoke with the stats.
+ *
+ * @return [ Void ]
+ */
+exports.getStartupStats = function (fn)
+{
+    if (this._isAndroid)
+    {
+        cordova.exec(fn, null, 'BackgroundMode', 'startup', []);
+    }
+    else
+    {
+        fn(undefined);
+    }
+};
+
+/**
+ * Energy usage of the current and recent background sessions and jobs
+ * (Android only). Each entry holds the cpu and wake lock time in ms, the
+ * received and sent bytes and a rough cost estimate in mAh.
+ *
+ * @param [ Function ] fn Callback function to invoke with the summary.
+ *
+ * @return [ Void ]
+ */
+exports.getEnergyStats = function (fn)
+{
+    if (this._isAndroid)
+    {
+        cordova.exec(fn, null, 'BackgroundMode', 'energy', []);
+    }
+    else
+    {
+        fn(undefined);
+    }
+};
+
+/**
+ * Append a batch of records to a native stream (Android only). Records
+ * are buffered and written in large transactions, at most one tick
+ * interval of the QoS level later.
+ *
+ * @param [ String ] stream The name of the stream.
+ * @param [ Array ] records The records, any JSON value.
+ * @param [ Object ] options Dict with durable to invoke fn only once the
+ *                           records are stored. Can be omitted.
+ * @param [ Function ] fn Callback invoked with the number of records.
+ * @param [ Function ] error Callback invoked if the batch wasn't accepted.
+ *
+ * @return [ Void ]
+ */
+exports.appendRecords = function (stream, records, options, fn, error)
+{
+    if (typeof options == 'function')
+    {
+        error   = fn;
+        fn      = options;
+        options = {};
+    }
+
+    var opts = options || {};
+
+    if (this._isAndroid)
+    {
+        cordova.exec(fn, error, 'BackgroundMode', 'records', ['append', stream, records, !!opts.durable]);
+    }
+};
+
+/**
+ * Read a range of records of a native stream (Android only).
+ *
+ * @param [ String ] stream The name of the stream.
+ * @param [ Object ] options Dict with after (id to start after) and limit.
+ * @param [ Function ] fn Callback invoked with the records and the id to
+ *                        continue with.
+ * @param [ Function ] error Callback invoked if the records weren't read.
+ *
+ * @return [ Void ]
+ */
+exports.readRecords = function (stream, options, fn, error)
+{
+    var opts = options || {};
+
+    if (this._isAndroid)
+    {
+        cordova.exec(fn, error, 'BackgroundMode', 'records', ['read', stream, opts.after || 0, opts.limit || 0]);
+    }
+};
+
+/**
+ * Delete the records of a native stream up to the given id (Android only).
+ *
+ * @param [ String ] stream The name of the stream.
+ * @param [ Number ] upTo The id of the last record to delete.
+ * @param [ Function ] fn Callback invoked with the number of deleted records.
+ *
+ * @return [ Void ]
+ */
+exports.deleteRecords = function (stream, upTo, fn)
+{
+    if (this._isAndroid)
+    {
+        cordova.exec(fn, null, 'BackgroundMode', 'records', ['delete', stream, upTo]);
+    }
+};
+
+/**
+ * Write all buffered records to disk (Android only).
+ *
+ * @param [ Function ] fn Callback invoked once the records are stored.
+ *
+ * @return [ Void ]
+ */
+exports.flushRecords = function (fn)
+{
+    if (this._isAndroid)
+    {
+        cordova.exec(fn, null, 'BackgroundMode', 'records', ['flush', null]);
+    }
+};
+
+/**
+ * Measure the native record sink with a separate database which gets
+ * deleted afterwards (Android only). Appends 1k, 10k and 100k records per
+ * second, acked when buffered and when stored, and reports the reached
+ * rate and the ack latency (p50, p99 in µs) of each run.
+ *
+ * @param [ Object ] options Dict with duration of each run in seconds
+ *                           (default 2).
+ * @param [ Function ] fn Callback invoked with the results.
+ * @param [ Function ] error Callback invoked if the benchmark failed.
+ *
+ * @return [ Void ]
+ */
+exports.benchmarkRecords = function (options, fn, error)
+{
+    var opts = options || {};
+
+    if (this._isAndroid)
+    {
+        cordova.exec(fn, error, 'BackgroundMode', 'records', ['bench', null, opts.duration || 2]);
+    }
+};
+
+/**
+ * Open a bulk handle for a native file, served same-origin by the web
+ * view instead of passed through the bridge (Android only).
+ *
+ * @param [ Object ] source Dict with either cache (key of a cache entry)
+ *                          or path (file inside the app storage), once
+ *                          to release the handle after the first fetch
+ *                          and ttl in ms (default 60000).
+ * @param [ Function ] fn Callback invoked with handle, url and size.
+ * @param [ Function ] error Callback invoked if the handle wasn't opened.
+ *
+ * @return [ Void ]
+ */
+exports.openBulk = function (source, fn, error)
+{
+    if (this._isAndroid)
+    {
+        cordova.exec(fn, error, 'BackgroundMode', 'bulk', ['open', source]);
+    }
+    else if (error)
+    {
+        error('Not supported');
+    }
+};
+
+/**
+ * Fetch the content of a bulk handle as ArrayBuffer (Android only).
+ * For streamed reads use fetch(handle.url) and its body reader.
+ *
+ * @param [ Object ] handle The handle returned by openBulk.
+ *
+ * @return [ Promise ] Resolves with the ArrayBuffer.
+ */
+exports.fetchBulk = function (handle)
+{
+    return fetch(handle.url).then(function (res) {
+        if (!res.ok) throw new Error('Bulk fetch failed: ' + res.status);
+        return res.arrayBuffer();
+    });
+};
+
+/**
+ * Release a bulk handle, its URL becomes invalid (Android only).
+ *
+ * @param [ Object ] handle The handle returned by openBulk.
+ * @param [ Function ] fn Callback invoked once the handle is released.
+ *
+ * @return [ Void ]
+ */
+exports.releaseBulk = function (handle, fn)
+{
+    if (this._isAndroid)
+    {
+        cordova.exec(fn, null, 'BackgroundMode', 'bulk', ['release', handle.handle]);
+    }
+};
+
+/**
+ * Compare the bulk channel with the bridge (Android only). For each size
+ * a sample file is read once as ArrayBuffer through the PluginResult of
+ * the bridge and once through fetchBulk, the throughput is in MB/s.
+ *
+ * @param [ Object ] options Dict with sizes in MB (default [1, 10, 100]).
+ * @param [ Function ] fn Callback invoked with the results per size.
+ * @param [ Function ] error Callback invoked if no sample was created.
+ *
+ * @return [ Void ]
+ */
+exports.benchmarkBulk = function (options, fn, error)
+{
+    var me      = this,
+        sizes   = ((options && options.sizes) || [1, 10, 100]).slice(),
+        results = [];
+
+    if (!this._isAndroid)
+    {
+        if (error) error('Not supported');
+        return;
+    }
+
+    var measure = function (handle, result) {
+        var start = performance.now();
+
+        var viaFetch = function () {
+            start = performance.now();
+
+            me.fetchBulk(handle).then(function (buffer) {
+                result.fetchMBps = result.size * 1000 / (performance.now() - start);
+                result.fetchBytes = buffer.byteLength;
+                me.releaseBulk(handle, next);
+            }, function (e) {
+                result.fetchError = String(e);
+                me.releaseBulk(handle, next);
+            });
+        };
+
+        cordova.exec(function (buffer) {
+            result.pluginResultMBps = result.size * 1000 / (performance.now() - start);
+            result.pluginResultBytes = buffer.byteLength;
+            viaFetch();
+        }, function (e) {
+            result.pluginResultError = String(e);
+            viaFetch();
+        }, 'BackgroundMode', 'bulk', ['read', handle.handle]);
+    };
+
+    var next = function () {
+        if (!sizes.length)
+            return fn(results);
+
+        var result = { size: sizes.shift() };
+        results.push(result);
+
+        cordova.exec(function (handle) {
+            measure(handle, result);
+        }, error, 'BackgroundMode', 'bulk', ['sample', result.size * 1024 * 1024]);
+    };
+
+    next();
+};
+
+/**
+ * Read the recent entries of the native log ring, oldest first (Android only).
+ *
+ * @param [ Object ] options Dict with after (seq to start after) and limit.
+ * @param [ Function ] fn Callback invoked with the entries.
+ *
+ * @return [ Void ]
+ */
+exports.getLogs = function (options, fn)
+{
+    var opts = options || {};
+
+    if (this._isAndroid)
+    {
+        cordova.exec(fn, null, 'BackgroundMode', 'logs', [opts.after || 0, opts.limit || 0]);
+    }
+    else
+    {
+        fn([]);
+    }
+};
+
+/**
+ * Export the raw log ring file and decode all of its entries (Android only).
+ *
+ * @param [ Function ] fn Callback invoked with the entries.
+ * @param [ Function ] error Callback invoked if the export failed.
+ *
+ * @return [ Void ]
+ */
+exports.exportLogs = function (fn, error)
+{
+    var me = this;
+
+    this.openBulk({ logs: true, once: true }, function (handle) {
+        me.fetchBulk(handle).then(function (buffer) {
+            fn(me.decodeLogs(buffer));
+        }, error);
+    }, error);
+};
+
+/**
+ * Decode the entries of a raw log ring file, oldest first.
+ *
+ * @param [ ArrayBuffer ] buffer The content of the file.
+ *
+ * @return [ Array ] Entries with seq, time, level, tag and text.
+ */
+exports.decodeLogs = function (buffer)
+{
+    var view    = new DataView(buffer),
+        entries = [];
+
+    if (buffer.byteLength < 16 || view.getInt32(0) !== 0x42474C52)
+        return entries;
+
+    // Version 1 had 16 bytes for the tag, version 2 has 24
+    var slots   = view.getInt32(8),
+        size    = view.getInt32(12),
+        textOff = view.getInt32(4) >= 2 ? 44 : 36;
+
+    var text = function (off, len) {
+        var str = '';
+        for (var i = 0; i < len; i++) str += String.fromCharCode(view.getUint8(off + i));
+        return str;
+    };
+
+    for (var slot = 0; slot < slots; slot++)
+    {
+        var off = 16 + slot * size,
+            seq = view.getUint32(off) * 4294967296 + view.getUint32(off + 4);
+
+        if (seq === 0)
+            continue;
+
+        entries.push({
+            seq:   seq,
+            time:  view.getUint32(off + 8) * 4294967296 + view.getUint32(off + 12),
+            level: view.getUint8(off + 16),
+            tag:   text(off + 20, Math.min(view.getUint8(off + 17), textOff - 20)),
+            text:  text(off + textOff, Math.min(view.getUint8(off + 18), size - textOff))
+        });
+    }
+
+    return entries.sort(function (a, b) { return a.seq - b.seq; });
+};
+
+/**
+ * Deliver the queued notification actions now instead of on next resume (Android only).
+ *
+ * @return [ Void ]
+ */
+exports.flushActions = function()
+{
+    if (this._isAndroid)
+    {
+        cordova.exec(null, null, 'BackgroundMode', 'flushActions', []);
     }
 };
 
@@ -416,6 +1219,20 @@ exports._isEnabled = false;
  */
 exports._isActive = false;
 
+/**
+ * @private
+ *
+ * Counter used for the ids of the streams.
+ */
+exports._streams = 0;
+
+/**
+ * @private
+ *
+ * Counter used for the ids of the downloads.
+ */
+exports._downloads = 0;
+
 /**
  * @private
  *
@@ -429,9 +1246,15 @@ exports._defaults =
     resume:  true,
     silent:  false,
     color:   undefined,
-    icon:    undefined
+    icon:    undefined,
+    tiered:  false,
+    actions: undefined,
+    audio:   false
 };
 
+// Defaults known to the native side, which falls back to the same values
+exports._nativeDefaults = JSON.parse(JSON.stringify(exports._defaults));
+
 /**
  * @private
  *
@@ -456,6 +1279,45 @@ exports._mergeObjects = function (options, toMergeIn)
     return options;
 };
 
+/**
+ * @private
+ *
+ * Compare two option values field by field, the order of the keys
+ * doesn't matter. Undefined and missing fields are equal.
+ *
+ * @param [ Object ] a The first value.
+ * @param [ Object ] b The second value.
+ *
+ * @return [ Boolean ]
+ */
+exports._isEqual = function (a, b)
+{
+    if (a === b)
+        return true;
+
+    if (typeof a != 'object' || typeof b != 'object' || !a || !b)
+        return false;
+
+    if (Array.isArray(a) != Array.isArray(b))
+        return false;
+
+    var key;
+
+    for (key in a)
+    {
+        if (a.hasOwnProperty(key) && !this._isEqual(a[key], b[key]))
+            return false;
+    }
+
+    for (key in b)
+    {
+        if (b.hasOwnProperty(key) && !a.hasOwnProperty(key) && b[key] !== undefined)
+            return false;
+    }
+
+    return true;
+};
+
 /**
  * @private
  *
@@ -514,6 +1376,16 @@ exports.requestPermissions = function(success, error) {
     }
 };
 
+// The cancel action of the notification disabled the mode natively
+exports.on('action', function(action)
+{
+    if (action.id == 'cancel' && exports._isEnabled)
+    {
+        exports._isEnabled = false;
+        exports.fireEvent('disable');
+    }
+});
+
 // Called before 'deviceready' listener will be called
 channel.onCordovaReady.subscribe(function()
 {